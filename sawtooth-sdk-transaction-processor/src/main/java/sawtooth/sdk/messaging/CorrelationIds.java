@@ -0,0 +1,86 @@
+/* Copyright 2016,  2017 Intel Corporation
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+------------------------------------------------------------------------------*/
+
+package sawtooth.sdk.messaging;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Correlation ids of the messages sent by a stream: a random prefix per
+ * stream followed by a counter in hex. The futures are keyed by the counter,
+ * ids of messages the validator sent on its own have a different prefix.
+ */
+final class CorrelationIds {
+
+  /**
+   * Marks ids that were not generated here.
+   */
+  static final long NONE = -1;
+
+  /**
+   * The random prefix of this stream.
+   */
+  private final String prefix;
+
+  /**
+   * The last counter value handed out.
+   */
+  private final AtomicLong counter = new AtomicLong();
+
+  /**
+   * Constructor.
+   */
+  CorrelationIds() {
+    this.prefix = Long.toHexString(new SecureRandom().nextLong()) + "-";
+  }
+
+  /**
+   * Get the key of the next message.
+   * @return the key, not negative
+   */
+  long next() {
+    return counter.incrementAndGet();
+  }
+
+  /**
+   * Format a key as correlation id.
+   * @param key the key from next
+   * @return the correlation id
+   */
+  String format(final long key) {
+    return prefix + Long.toHexString(key);
+  }
+
+  /**
+   * Get the key of a correlation id, without allocating.
+   * @param correlationId the correlation id of a received message
+   * @return the key or NONE if the id was not generated here
+   */
+  long parse(final String correlationId) {
+    int length = correlationId.length();
+    if (length == prefix.length() || length > prefix.length() + 16 || !correlationId.startsWith(prefix)) {
+      return NONE;
+    }
+    long key = 0;
+    for (int i = prefix.length(); i < length; i++) {
+      int digit = Character.digit(correlationId.charAt(i), 16);
+      if (digit < 0) {
+        return NONE;
+      }
+      key = (key << 4) | digit;
+    }
+    return key;
+  }
+}
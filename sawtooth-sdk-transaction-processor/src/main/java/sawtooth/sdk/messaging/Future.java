@@ -17,6 +17,8 @@ package sawtooth.sdk.messaging;
 import com.google.protobuf.ByteString;
 import sawtooth.sdk.processor.exceptions.ValidatorConnectionError;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -34,7 +36,7 @@ public interface Future {
 
   /**
    * Block until timeout, then throw TimeoutException if result is not available.
-   * @param timeout The amount of time to wait.
+   * @param timeout The amount of time to wait in seconds.
    * @return result ByteString
    * @throws InterruptedException     An interrupt happened.
    * @throws TimeoutException         The time to wait happened.
@@ -42,6 +44,26 @@ public interface Future {
    */
   ByteString getResult(long timeout) throws InterruptedException, TimeoutException, ValidatorConnectionError;
 
+  /**
+   * Block until timeout, then throw TimeoutException if result is not available.
+   * @param timeout The amount of time to wait.
+   * @param unit    The unit of the timeout.
+   * @return result ByteString
+   * @throws InterruptedException     An interrupt happened.
+   * @throws TimeoutException         The time to wait happened.
+   * @throws ValidatorConnectionError The validator disconnected.
+   */
+  ByteString getResult(long timeout, TimeUnit unit)
+      throws InterruptedException, TimeoutException, ValidatorConnectionError;
+
+  /**
+   * The result as CompletableFuture, to chain callbacks instead of blocking a
+   * thread. It completes exceptionally with ValidatorConnectionError if the
+   * validator disconnects or does not respond.
+   * @return CompletableFuture of the result
+   */
+  CompletableFuture<ByteString> toCompletableFuture();
+
   /**
    * Set the result of the Future.
    * @param byteString the result.
@@ -15,11 +15,12 @@
 package sawtooth.sdk.messaging;
 
 import com.google.protobuf.ByteString;
+import sawtooth.sdk.processor.exceptions.ValidatorConnectionError;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A future that resolves to ByteString.
@@ -28,77 +29,75 @@ public class FutureByteString implements Future {
   /**
    * The result ByteString that is to be resolved.
    */
-  private ByteString result;
+  private final CompletableFuture<ByteString> result;
 
   /**
    * The coorelation id associated with the message being waited for.
    */
   private String correlationId;
 
-  /**
-   * Lock to make the actions on this object synchronous.
-   */
-  private final ReentrantLock lock;
-
-  /**
-   * A condition variable to wait for the result.
-   */
-  private final Condition condition;
-
   /**
    * Constructor.
-   * @param id created with Stream.generateId, to match future with it's result
+   * @param id the correlation id of the sent message, to match future with it's result
    */
   public FutureByteString(final String id) {
-    this.lock = new ReentrantLock();
-    this.condition = lock.newCondition();
+    this.result = new CompletableFuture<>();
     this.correlationId = id;
-    this.result = null;
   }
 
   /**
    * Returns the ByteString result, waiting for it to not be null.
    * @return ByteString protobuf
-   * @throws InterruptedException an interrupt happens during the method call.
+   * @throws InterruptedException     an interrupt happens during the method call.
+   * @throws ValidatorConnectionError the validator disconnected or did not respond.
    */
-  public final ByteString getResult() throws InterruptedException {
-    ByteString byteString = null;
-    lock.lock();
+  public final ByteString getResult() throws InterruptedException, ValidatorConnectionError {
     try {
-      if (result == null) {
-        condition.await();
-      }
-      byteString = result;
-    } finally {
-      lock.unlock();
+      return result.get();
+    } catch (ExecutionException ee) {
+      throw unwrap(ee);
     }
+  }
 
-    return byteString;
+  /**
+   * Returns the ByteString result. If the timeout expires, throws
+   * TimeoutException.
+   * @param timeout time to wait for a result in seconds.
+   * @return ByteString protobuf
+   * @throws InterruptedException     an interrupt happens during the method call.
+   * @throws TimeoutException         the result is not received before the timeout.
+   * @throws ValidatorConnectionError the validator disconnected or did not respond.
+   */
+  public final ByteString getResult(final long timeout)
+      throws InterruptedException, TimeoutException, ValidatorConnectionError {
+    return getResult(timeout, TimeUnit.SECONDS);
   }
 
   /**
    * Returns the ByteString result. If the timeout expires, throws
    * TimeoutException.
    * @param timeout time to wait for a result.
+   * @param unit    the unit of the timeout.
    * @return ByteString protobuf
-   * @throws InterruptedException an interrupt happens during the method call.
-   * @throws TimeoutException     the result is not received before the timeout.
+   * @throws InterruptedException     an interrupt happens during the method call.
+   * @throws TimeoutException         the result is not received before the timeout.
+   * @throws ValidatorConnectionError the validator disconnected or did not respond.
    */
-  public final ByteString getResult(final long timeout) throws InterruptedException, TimeoutException {
-    ByteString byteString = null;
-    lock.lock();
+  public final ByteString getResult(final long timeout, final TimeUnit unit)
+      throws InterruptedException, TimeoutException, ValidatorConnectionError {
     try {
-      if (result == null) {
-        condition.await(timeout, TimeUnit.SECONDS);
-      }
-      byteString = result;
-    } finally {
-      lock.unlock();
+      return result.get(timeout, unit);
+    } catch (ExecutionException ee) {
+      throw unwrap(ee);
     }
-    if (byteString == null) {
-      throw new TimeoutException("Future Timed out");
-    }
-    return byteString;
+  }
+
+  /**
+   * Returns the result as CompletableFuture.
+   * @return CompletableFuture of the result
+   */
+  public final CompletableFuture<ByteString> toCompletableFuture() {
+    return result;
   }
 
   /**
@@ -106,13 +105,15 @@ public class FutureByteString implements Future {
    * @param byteString the byteString used to resolve the future
    */
   public final void setResult(final ByteString byteString) {
-    lock.lock();
-    try {
-      result = byteString;
-      condition.signalAll();
-    } finally {
-      lock.unlock();
-    }
+    result.complete(byteString);
+  }
+
+  /**
+   * Call this method if the result will not arrive.
+   * @param error the reason
+   */
+  public final void setError(final ValidatorConnectionError error) {
+    result.completeExceptionally(error);
   }
 
   /**
@@ -120,14 +121,7 @@ public class FutureByteString implements Future {
    * @return answer boolean
    */
   public final boolean isDone() {
-    boolean answer = false;
-    lock.lock();
-    try {
-      answer = result != null;
-    } finally {
-      lock.unlock();
-    }
-    return answer;
+    return result.isDone() && !result.isCompletedExceptionally();
   }
 
   /**
@@ -138,4 +132,16 @@ public class FutureByteString implements Future {
     return this.correlationId;
   }
 
+  /**
+   * The error the future was completed with.
+   * @param ee the exception thrown by the CompletableFuture
+   * @return the ValidatorConnectionError to throw
+   */
+  private static ValidatorConnectionError unwrap(final ExecutionException ee) {
+    if (ee.getCause() instanceof ValidatorConnectionError) {
+      return (ValidatorConnectionError) ee.getCause();
+    }
+    return new ValidatorConnectionError(String.valueOf(ee.getCause()));
+  }
+
 }
@@ -17,6 +17,8 @@ package sawtooth.sdk.messaging;
 import com.google.protobuf.ByteString;
 import sawtooth.sdk.processor.exceptions.ValidatorConnectionError;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -51,6 +53,29 @@ public class FutureError implements Future {
     throw new ValidatorConnectionError();
   }
 
+  /**
+   * Always raises ValidatorConnectionError.
+   * @param time The timeout.
+   * @param unit The unit of the timeout.
+   * @throws ValidatorConnectionError Always throws this Exception.
+   * @throws TimeoutException         Does not throw this exception.
+   * @return Does not return.
+   */
+  public final ByteString getResult(final long time, final TimeUnit unit)
+      throws TimeoutException, ValidatorConnectionError {
+    throw new ValidatorConnectionError();
+  }
+
+  /**
+   * Returns a CompletableFuture that failed with ValidatorConnectionError.
+   * @return the failed CompletableFuture.
+   */
+  public final CompletableFuture<ByteString> toCompletableFuture() {
+    CompletableFuture<ByteString> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new ValidatorConnectionError());
+    return failed;
+  }
+
   /**
    * Always raises ValidatorConnectionError.
    * @param byteString The bytes.
@@ -14,20 +14,23 @@
 
 package sawtooth.sdk.messaging;
 
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 import org.zeromq.*;
 import sawtooth.sdk.processor.exceptions.ValidatorConnectionError;
 import sawtooth.sdk.protobuf.Message;
+import sawtooth.sdk.protobuf.PingResponse;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Iterator;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * An internal messaging implementation used by the Stream class.
@@ -45,25 +48,37 @@ class SendReceiveThread implements Runnable {
   private ZMQ.Socket socket;
 
   /**
-   * Lock associated with the Condition.
+   * Serialized messages to send, filled by any thread and drained by the
+   * thread of the event loop, which is the only one using the socket.
    */
-  private Lock lock = new ReentrantLock();
+  private final ConcurrentLinkedQueue<byte[]> outbound = new ConcurrentLinkedQueue<>();
 
   /**
-   * Condition to wait for setup to happen.
+   * Wakes up the event loop when messages were queued.
    */
-  private Condition condition = lock.newCondition();
+  private final Pipe wakeup;
+
+  /**
+   * Whether a wakeup is in the pipe that the event loop has not handled yet,
+   * so that a burst of messages writes to the pipe only once.
+   */
+  private final AtomicBoolean wakeupPending = new AtomicBoolean();
 
   /**
    * Futures to be resolved.
    */
-  private ConcurrentHashMap<String, Future> futures;
+  private ConcurrentHashMap<Long, FutureByteString> futures;
 
   /**
    * Incoming messages.
    */
   private LinkedBlockingQueue<MessageWrapper> receiveQueue;
 
+  /**
+   * Maps correlation ids to the keys of the futures.
+   */
+  private final CorrelationIds correlationIds;
+
   /**
    * The Zeromq context.
    */
@@ -74,14 +89,22 @@ class SendReceiveThread implements Runnable {
    * @param address  The address to connect to.
    * @param hashMap  The futures to resolve.
    * @param receiver The incoming messages.
+   * @param ids      The correlation ids of the futures.
    */
-  SendReceiveThread(final String address, final ConcurrentHashMap<String, Future> hashMap,
-      final LinkedBlockingQueue<MessageWrapper> receiver) {
+  SendReceiveThread(final String address, final ConcurrentHashMap<Long, FutureByteString> hashMap,
+      final LinkedBlockingQueue<MessageWrapper> receiver, final CorrelationIds ids) {
     super();
     this.url = address;
     this.futures = hashMap;
     this.receiveQueue = receiver;
+    this.correlationIds = ids;
     this.context = null;
+    try {
+      this.wakeup = Pipe.open();
+      this.wakeup.source().configureBlocking(false);
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
   }
 
   /**
@@ -124,7 +147,7 @@ class SendReceiveThread implements Runnable {
     /**
      * Futures to be resolved.
      */
-    private ConcurrentHashMap<String, Future> futures;
+    private ConcurrentHashMap<Long, FutureByteString> futures;
 
     /**
      * Constructor.
@@ -132,18 +155,20 @@ class SendReceiveThread implements Runnable {
      * @param hashMap  The futures that will be resolved.
      */
     DisconnectThread(final LinkedBlockingQueue<MessageWrapper> receiver,
-        final ConcurrentHashMap<String, Future> hashMap) {
+        final ConcurrentHashMap<Long, FutureByteString> hashMap) {
       this.receiveQueue = SendReceiveThread.this.receiveQueue;
       this.futures = SendReceiveThread.this.futures;
     }
 
     /**
-     * Put a key and associated value in the futures.
-     * @param key   correlation id
-     * @param value the future.
+     * Fail the future of a correlation id, waiters get a ValidatorConnectionError.
+     * @param key key of the correlation id
      */
-    void putInFutures(final String key, final Future value) {
-      this.futures.put(key, value);
+    void failFuture(final Long key) {
+      FutureByteString future = this.futures.remove(key);
+      if (future != null) {
+        future.setError(new ValidatorConnectionError());
+      }
     }
 
     /**
@@ -167,7 +192,7 @@ class SendReceiveThread implements Runnable {
      * Return an enumeration of the coorelation ids.
      * @return coorelation ids.
      */
-    ConcurrentHashMap.KeySetView<String, Future> getFuturesKeySet() {
+    ConcurrentHashMap.KeySetView<Long, FutureByteString> getFuturesKeySet() {
       return this.futures.keySet();
     }
 
@@ -181,7 +206,7 @@ class SendReceiveThread implements Runnable {
     /**
      * The futures that will be resolved.
      */
-    private ConcurrentHashMap<String, Future> futures;
+    private ConcurrentHashMap<Long, FutureByteString> futures;
 
     /**
      * The threadsafe queue that new messages will be put on.
@@ -193,7 +218,7 @@ class SendReceiveThread implements Runnable {
      * @param hashMap  The futures that will be resolved.
      * @param receiver The new messages that will get added to.
      */
-    Receiver(final ConcurrentHashMap<String, Future> hashMap, final LinkedBlockingQueue<MessageWrapper> receiver) {
+    Receiver(final ConcurrentHashMap<Long, FutureByteString> hashMap, final LinkedBlockingQueue<MessageWrapper> receiver) {
       this.futures = hashMap;
       this.receiveQueue = receiver;
     }
@@ -201,23 +226,22 @@ class SendReceiveThread implements Runnable {
     @Override
     public int handle(final ZLoop loop, final ZMQ.PollItem item, final Object arg) {
       ZMsg msg = ZMsg.recvMsg(item.getSocket());
-      Iterator<ZFrame> multiPartMessage = msg.iterator();
-
-      ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-      while (multiPartMessage.hasNext()) {
-        ZFrame frame = multiPartMessage.next();
-        try {
-          byteArrayOutputStream.write(frame.getData());
-        } catch (IOException ioe) {
-          ioe.printStackTrace();
-        }
-      }
       try {
-        Message message = Message.parseFrom(byteArrayOutputStream.toByteArray());
-        if (this.futures.containsKey(message.getCorrelationId())) {
-          Future future = this.futures.get(message.getCorrelationId());
+        Message message = parse(msg);
+        if (message.getMessageType() == Message.MessageType.PING_REQUEST) {
+          // Answered right here, so the validator sees a live processor however busy its threads are
+          Message pingResponse = Message.newBuilder()
+              .setCorrelationId(message.getCorrelationId())
+              .setMessageType(Message.MessageType.PING_RESPONSE)
+              .setContent(PingResponse.getDefaultInstance().toByteString())
+              .build();
+          item.getSocket().send(pingResponse.toByteArray(), 0);
+          return 0;
+        }
+        long key = SendReceiveThread.this.correlationIds.parse(message.getCorrelationId());
+        FutureByteString future = key == CorrelationIds.NONE ? null : this.futures.remove(key);
+        if (future != null) {
           future.setResult(message.getContent());
-          this.futures.remove(message.getCorrelationId(), future);
         } else {
           MessageWrapper wrapper = new MessageWrapper(message);
           this.receiveQueue.put(wrapper);
@@ -226,12 +250,75 @@ class SendReceiveThread implements Runnable {
         ie.printStackTrace();
       } catch (InvalidProtocolBufferException ipe) {
         ipe.printStackTrace();
-      } catch (ValidatorConnectionError vce) {
-        vce.printStackTrace();
       }
 
       return 0;
     }
+
+    /**
+     * Parse the Message of a zmq message. The validator sends a Message in a
+     * single frame, that frame is parsed in place and the content of the
+     * Message refers to the frame's array instead of a copy. Only messages of
+     * several frames are concatenated first.
+     * @param msg the zmq message
+     * @return the protobuf Message
+     * @throws InvalidProtocolBufferException the frames are not a Message
+     */
+    private Message parse(final ZMsg msg) throws InvalidProtocolBufferException {
+      if (msg.size() == 1) {
+        byte[] data = msg.getFirst().getData();
+        CodedInputStream input = CodedInputStream.newInstance(data);
+        // The frame is not used after parsing, so its array can back the ByteStrings
+        input.enableAliasing(true);
+        try {
+          return Message.parseFrom(input);
+        } catch (InvalidProtocolBufferException ipbe) {
+          throw ipbe;
+        } catch (IOException ioe) {
+          throw new InvalidProtocolBufferException(ioe);
+        }
+      }
+      int size = 0;
+      for (ZFrame frame : msg) {
+        size += frame.size();
+      }
+      ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(size);
+      for (ZFrame frame : msg) {
+        byteArrayOutputStream.write(frame.getData(), 0, frame.size());
+      }
+      return Message.parseFrom(byteArrayOutputStream.toByteArray());
+    }
+  }
+
+  /**
+   * Inner class for sending the queued messages when woken up.
+   */
+  private class Sender implements ZLoop.IZLoopHandler {
+
+    /**
+     * Buffer the wakeup bytes are read into.
+     */
+    private final ByteBuffer drain = ByteBuffer.allocate(64);
+
+    @Override
+    public int handle(final ZLoop loop, final ZMQ.PollItem item, final Object arg) {
+      // Empty the pipe before the flag is cleared: a byte written after the clear must stay in the
+      // pipe, or the flag would stay set with nothing left to wake the loop. A message whose sender
+      // saw the flag still set was queued before the clear, so the poll below sends it.
+      try {
+        while (wakeup.source().read(drain) > 0) {
+          drain.clear();
+        }
+      } catch (IOException ioe) {
+        ioe.printStackTrace();
+      }
+      wakeupPending.set(false);
+      byte[] message;
+      while ((message = outbound.poll()) != null) {
+        socket.send(message, 0);
+      }
+      return 0;
+    }
   }
 
   @Override
@@ -250,9 +337,8 @@ class SendReceiveThread implements Runnable {
           if (event.getEvent() == ZMQ.EVENT_DISCONNECTED) {
             try {
               MessageWrapper disconnectMsg = new MessageWrapper(null);
-              for (String key : this.getFuturesKeySet()) {
-                Future future = new FutureError();
-                this.putInFutures(key, future);
+              for (Long key : this.getFuturesKeySet()) {
+                this.failFuture(key);
               }
               this.clearReceiveQueue();
               this.putInReceiveQueue(disconnectMsg);
@@ -266,36 +352,30 @@ class SendReceiveThread implements Runnable {
 
     socket.setIdentity((this.getClass().getName() + UUID.randomUUID().toString()).getBytes());
     socket.connect(url);
-    lock.lock();
-    try {
-      condition.signalAll();
-    } finally {
-      lock.unlock();
-    }
     ZLoop eventLoop = new ZLoop(context);
     ZMQ.PollItem pollItem = new ZMQ.PollItem(socket, ZMQ.Poller.POLLIN);
     eventLoop.addPoller(pollItem, new Receiver(futures, receiveQueue), new Object());
+    // Messages queued before the loop started are still announced by the pipe
+    ZMQ.PollItem wakeupItem = new ZMQ.PollItem(this.wakeup.source(), ZMQ.Poller.POLLIN);
+    eventLoop.addPoller(wakeupItem, new Sender(), new Object());
     eventLoop.start();
   }
 
   /**
-   * Used by the Stream class to send a message.
+   * Used by the Stream class to send a message. Safe to call from any thread,
+   * the message is serialized by the caller and sent by the event loop.
    * @param message protobuf Message
    */
   public final void sendMessage(final Message message) {
-    lock.lock();
-    try {
-      if (socket == null) {
-        condition.await();
+    outbound.add(message.toByteArray());
+    if (wakeupPending.compareAndSet(false, true)) {
+      try {
+        wakeup.sink().write(ByteBuffer.wrap(new byte[] {0}));
+      } catch (IOException ioe) {
+        wakeupPending.set(false);
+        ioe.printStackTrace();
       }
-    } catch (InterruptedException ie) {
-      ie.printStackTrace();
-    } finally {
-      lock.unlock();
     }
-    ZMsg msg = new ZMsg();
-    msg.add(message.toByteString().toByteArray());
-    msg.send(socket);
   }
 
   /**
@@ -304,6 +384,12 @@ class SendReceiveThread implements Runnable {
   public void stop() {
     this.socket.close();
     this.context.destroy();
+    try {
+      this.wakeup.sink().close();
+      this.wakeup.source().close();
+    } catch (IOException ioe) {
+      ioe.printStackTrace();
+    }
   }
 
 }
@@ -15,11 +15,13 @@
 package sawtooth.sdk.messaging;
 
 import com.google.protobuf.ByteString;
+import sawtooth.sdk.processor.exceptions.ValidatorConnectionError;
 import sawtooth.sdk.protobuf.Message;
 
-import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -27,10 +29,29 @@ import java.util.concurrent.TimeoutException;
  * A ZMQ implementation of client networking class.
  */
 public class ZmqStream implements Stream {
+  /**
+   * Default time in milliseconds after which a future without response is
+   * failed and dropped.
+   */
+  public static final long DEFAULT_EXPIRY_MILLIS = 60000;
+
+  /**
+   * Timer that expires the futures of all streams.
+   */
+  private static final ScheduledThreadPoolExecutor EXPIRY_TIMER = createExpiryTimer();
+
   /**
    * Futures that are waiting to be resolved.
    */
-  private ConcurrentHashMap<String, Future> futureHashMap;
+  private ConcurrentHashMap<Long, FutureByteString> futureHashMap;
+  /**
+   * Time in nanoseconds after which a future without response is failed.
+   */
+  private volatile long expiryNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_EXPIRY_MILLIS);
+  /**
+   * Generates the correlation ids of sent messages.
+   */
+  private final CorrelationIds correlationIds = new CorrelationIds();
   /**
    * Threadsafe queue to interact with the background thread.
    */
@@ -49,9 +70,10 @@ public class ZmqStream implements Stream {
    * @param address the zmq address.
    */
   public ZmqStream(final String address) {
-    this.futureHashMap = new ConcurrentHashMap<String, Future>();
+    this.futureHashMap = new ConcurrentHashMap<Long, FutureByteString>();
     this.receiveQueue = new LinkedBlockingQueue<SendReceiveThread.MessageWrapper>();
-    this.sendReceiveThread = new SendReceiveThread(address, futureHashMap, this.receiveQueue);
+    this.sendReceiveThread = new SendReceiveThread(address, futureHashMap, this.receiveQueue,
+        this.correlationIds);
     this.thread = new Thread(sendReceiveThread);
     this.thread.start();
   }
@@ -68,15 +90,49 @@ public class ZmqStream implements Stream {
   @Override
   public final Future send(final Message.MessageType destination, final ByteString contents) {
 
-    Message message = Message.newBuilder().setCorrelationId(this.generateId()).setMessageType(destination)
+    Long key = this.correlationIds.next();
+    String correlationId = this.correlationIds.format(key);
+    Message message = Message.newBuilder().setCorrelationId(correlationId).setMessageType(destination)
         .setContent(contents).build();
 
-    FutureByteString future = new FutureByteString(message.getCorrelationId());
-    this.futureHashMap.put(message.getCorrelationId(), future);
+    FutureByteString future = new FutureByteString(correlationId);
+    this.futureHashMap.put(key, future);
+    // Without a response the future would stay in the map forever
+    ScheduledFuture<?> expiry = EXPIRY_TIMER.schedule(() -> {
+      if (this.futureHashMap.remove(key, future)) {
+        future.setError(new ValidatorConnectionError("No response to " + correlationId));
+      }
+    }, this.expiryNanos, TimeUnit.NANOSECONDS);
+    future.toCompletableFuture().whenComplete((result, error) -> expiry.cancel(false));
     this.sendReceiveThread.sendMessage(message);
     return future;
   }
 
+  /**
+   * Set the time after which a future without response is failed with
+   * ValidatorConnectionError and dropped. Applies to messages sent afterwards.
+   * @param timeout the time to wait for a response.
+   * @param unit    the unit of the timeout.
+   */
+  public final void setExpiry(final long timeout, final TimeUnit unit) {
+    this.expiryNanos = unit.toNanos(timeout);
+  }
+
+  /**
+   * Create the timer shared by all streams.
+   * @return the timer
+   */
+  private static ScheduledThreadPoolExecutor createExpiryTimer() {
+    ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread thread = new Thread(r, "ZmqStream-expiry");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // Most futures are answered, their cancelled expiries should not pile up in the queue
+    timer.setRemoveOnCancelPolicy(true);
+    return timer;
+  }
+
   /**
    * Send a message without getting a future back. Useful for sending a response
    * message to, for example, a transaction
@@ -144,12 +200,4 @@ public class ZmqStream implements Stream {
     return result.getMessage();
   }
 
-  /**
-   * generate a random String, to correlate sent messages. with futures
-   * @return a random String
-   */
-  private String generateId() {
-    return UUID.randomUUID().toString();
-  }
-
 }
@@ -0,0 +1,196 @@
+/* Copyright 2019 Hyperledger Sawtooth Contributors
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+------------------------------------------------------------------------------*/
+package sawtooth.sdk.processor;
+
+import com.google.protobuf.ByteString;
+import sawtooth.sdk.processor.exceptions.InternalError;
+import sawtooth.sdk.processor.exceptions.InvalidTransactionException;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Context that keeps all writes, events and receipt data of a transaction
+ * and sends them to the wrapped context when awaitAll is called after a
+ * successful apply: the sets as one request, the deletes as one request and
+ * the events and receipt data pipelined behind them. Nothing is sent if apply
+ * throws. Reads of addresses written before are served from the buffer.
+ */
+public class BufferedContext implements Context {
+
+  /**
+   * The context the buffered operations are sent to.
+   */
+  private final Context delegate;
+
+  /**
+   * Buffered writes in order, a deleted address maps to null.
+   */
+  private final Map<String, ByteString> writes = new LinkedHashMap<>();
+
+  /**
+   * Buffered events.
+   */
+  private final List<Event> events = new ArrayList<>();
+
+  /**
+   * Buffered receipt data.
+   */
+  private final List<ByteString> receiptData = new ArrayList<>();
+
+  /**
+   * An event to send on flush.
+   */
+  private static final class Event {
+    /**
+     * The event type.
+     */
+    private final String eventType;
+
+    /**
+     * The event attributes.
+     */
+    private final Collection<Map.Entry<String, String>> attributes;
+
+    /**
+     * The event data or null.
+     */
+    private final ByteString data;
+
+    /**
+     * Constructor.
+     * @param myEventType  the event type
+     * @param myAttributes the event attributes
+     * @param myData       the event data or null
+     */
+    Event(final String myEventType, final Collection<Map.Entry<String, String>> myAttributes,
+        final ByteString myData) {
+      this.eventType = myEventType;
+      this.attributes = new ArrayList<>(myAttributes);
+      this.data = myData;
+    }
+  }
+
+  /**
+   * The constructor for this class.
+   * @param myDelegate the context the buffered operations are sent to
+   */
+  public BufferedContext(final Context myDelegate) {
+    this.delegate = myDelegate;
+  }
+
+  @Override
+  public final synchronized Map<String, ByteString> getState(final Collection<String> addresses)
+      throws InternalError, InvalidTransactionException {
+    Map<String, ByteString> results = new HashMap<>();
+    List<String> unbuffered = new ArrayList<>();
+    for (String address : addresses) {
+      if (writes.containsKey(address)) {
+        ByteString value = writes.get(address);
+        // Deleted addresses read as empty, like addresses that were never set
+        results.put(address, value == null ? ByteString.EMPTY : value);
+      } else {
+        unbuffered.add(address);
+      }
+    }
+    if (!unbuffered.isEmpty()) {
+      results.putAll(delegate.getState(unbuffered));
+    }
+    return results;
+  }
+
+  /**
+   * Buffer a Set request. Authorization is checked when the buffer is sent,
+   * so the given addresses are returned as set.
+   * @param addressValuePairs A collection of Map.Entry's
+   * @return the addresses in the request
+   */
+  @Override
+  public final synchronized Collection<String> setState(
+      final Collection<java.util.Map.Entry<String, ByteString>> addressValuePairs) {
+    List<String> addresses = new ArrayList<>();
+    for (Map.Entry<String, ByteString> entry : addressValuePairs) {
+      // Keep the order of the first write
+      writes.put(entry.getKey(), entry.getValue());
+      addresses.add(entry.getKey());
+    }
+    return addresses;
+  }
+
+  /**
+   * Buffer a Delete request.
+   * @param addresses a collection of address Strings
+   * @return the addresses in the request
+   */
+  @Override
+  public final synchronized Collection<String> deleteState(final Collection<String> addresses) {
+    for (String address : addresses) {
+      writes.put(address, null);
+    }
+    return new ArrayList<>(addresses);
+  }
+
+  @Override
+  public final synchronized void addReceiptData(final ByteString data) {
+    receiptData.add(data);
+  }
+
+  @Override
+  public final synchronized void addEvent(final String eventType,
+      final Collection<Map.Entry<String, String>> attributes, final ByteString data) {
+    events.add(new Event(eventType, attributes, data));
+  }
+
+  /**
+   * Send the buffer to the wrapped context and wait for all responses. Sets
+   * and deletes never share an address, so all requests are sent before the
+   * first response is waited for.
+   * @throws InternalError               something went wrong processing
+   *                                     transaction
+   * @throws InvalidTransactionException an invalid transaction was encountered
+   */
+  @Override
+  public final synchronized void awaitAll() throws InternalError, InvalidTransactionException {
+    List<Map.Entry<String, ByteString>> sets = new ArrayList<>();
+    List<String> deletes = new ArrayList<>();
+    for (Map.Entry<String, ByteString> write : writes.entrySet()) {
+      if (write.getValue() == null) {
+        deletes.add(write.getKey());
+      } else {
+        sets.add(new AbstractMap.SimpleEntry<>(write.getKey(), write.getValue()));
+      }
+    }
+    if (!sets.isEmpty()) {
+      delegate.setStateAsync(sets);
+    }
+    if (!deletes.isEmpty()) {
+      delegate.deleteStateAsync(deletes);
+    }
+    for (Event event : events) {
+      delegate.addEventAsync(event.eventType, event.attributes, event.data);
+    }
+    for (ByteString data : receiptData) {
+      delegate.addReceiptDataAsync(data);
+    }
+    writes.clear();
+    events.clear();
+    receiptData.clear();
+    delegate.awaitAll();
+  }
+}
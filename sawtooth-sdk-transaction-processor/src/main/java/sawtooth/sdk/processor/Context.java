@@ -77,4 +77,83 @@ public interface Context {
    */
   void addEvent(String eventType, Collection<Map.Entry<String, String>> attributes, ByteString data)
       throws InternalError;
+
+  /**
+   * Send a Get request without waiting for the response. Operations that
+   * are outstanding at the same time may be applied in any order, so get the
+   * result of a write before reading the same address.
+   * @param addresses a collection of address Strings
+   * @return ContextFuture of the map where the keys are addresses, values
+   *         Bytestring
+   * @throws InternalError               something went wrong processing
+   *                                     transaction
+   * @throws InvalidTransactionException an invalid transaction was encountered
+   */
+  default ContextFuture<Map<String, ByteString>> getStateAsync(Collection<String> addresses)
+      throws InternalError, InvalidTransactionException {
+    return ContextFuture.completed(getState(addresses));
+  }
+
+  /**
+   * Send a Set request without waiting for the response.
+   * @param addressValuePairs A collection of Map.Entry's
+   * @return ContextFuture of the addresses that were set
+   * @throws InternalError               something went wrong processing
+   *                                     transaction
+   * @throws InvalidTransactionException an invalid transaction was encountered
+   */
+  default ContextFuture<Collection<String>> setStateAsync(
+      Collection<java.util.Map.Entry<String, ByteString>> addressValuePairs)
+      throws InternalError, InvalidTransactionException {
+    return ContextFuture.completed(setState(addressValuePairs));
+  }
+
+  /**
+   * Send a Delete request without waiting for the response.
+   * @param addresses a collection of address Strings
+   * @return ContextFuture of the addresses that were deleted
+   * @throws InternalError               something went wrong processing
+   *                                     transaction
+   * @throws InvalidTransactionException an invalid transaction was encountered
+   */
+  default ContextFuture<Collection<String>> deleteStateAsync(Collection<String> addresses)
+      throws InternalError, InvalidTransactionException {
+    return ContextFuture.completed(deleteState(addresses));
+  }
+
+  /**
+   * Add a blob to the execution result without waiting for the response.
+   * @param data The data to add
+   * @return ContextFuture that completes when the data was added
+   * @throws InternalError something went wrong processing transaction
+   */
+  default ContextFuture<Void> addReceiptDataAsync(ByteString data) throws InternalError {
+    addReceiptData(data);
+    return ContextFuture.completed(null);
+  }
+
+  /**
+   * Add an event to the execution result without waiting for the response.
+   * @param eventType  the event type, see addEvent
+   * @param attributes the event attributes, see addEvent
+   * @param data       the event data or null
+   * @return ContextFuture that completes when the event was added
+   * @throws InternalError something went wrong processing transaction
+   */
+  default ContextFuture<Void> addEventAsync(String eventType, Collection<Map.Entry<String, String>> attributes,
+      ByteString data) throws InternalError {
+    addEvent(eventType, attributes, data);
+    return ContextFuture.completed(null);
+  }
+
+  /**
+   * Wait for the responses to all operations sent without waiting. Called by
+   * the transaction processor after apply, so a failed operation fails the
+   * transaction even if the handler did not get its result.
+   * @throws InternalError               something went wrong processing
+   *                                     transaction
+   * @throws InvalidTransactionException an invalid transaction was encountered
+   */
+  default void awaitAll() throws InternalError, InvalidTransactionException {
+  }
 }
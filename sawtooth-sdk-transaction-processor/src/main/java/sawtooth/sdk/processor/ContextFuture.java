@@ -0,0 +1,44 @@
+/* Copyright 2019 Hyperledger Sawtooth Contributors
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+------------------------------------------------------------------------------*/
+package sawtooth.sdk.processor;
+
+import sawtooth.sdk.processor.exceptions.InternalError;
+import sawtooth.sdk.processor.exceptions.InvalidTransactionException;
+
+/**
+ * The result of a context operation that was sent without waiting for the response.
+ * @param <T> the type of the result
+ */
+@FunctionalInterface
+public interface ContextFuture<T> {
+
+  /**
+   * Block until the response to the operation is received.
+   * @return the result of the operation
+   * @throws InternalError               something went wrong processing
+   *                                     transaction
+   * @throws InvalidTransactionException an invalid transaction was encountered
+   */
+  T get() throws InternalError, InvalidTransactionException;
+
+  /**
+   * A future for an operation that already completed.
+   * @param value the result of the operation
+   * @param <T>   the type of the result
+   * @return ContextFuture that returns the value
+   */
+  static <T> ContextFuture<T> completed(final T value) {
+    return () -> value;
+  }
+}
@@ -27,10 +27,13 @@ import sawtooth.sdk.protobuf.Event.Builder;
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Client state that interacts with the context manager through Stream
- * networking.
+ * networking. Requests are sent as soon as an operation is called, the
+ * blocking operations wait for the response right away while the async ones
+ * leave that to the caller.
  */
 public class StreamContext implements Context {
 
@@ -45,9 +48,116 @@ public class StreamContext implements Context {
   private String contextId;
 
   /**
-   * How long to wait for a networking response.
+   * How long to wait for a networking response in milliseconds, counted from sending the request.
    */
-  private static final int TIME_OUT = 2;
+  private static final long TIME_OUT_MILLIS = 2000;
+
+  /**
+   * Requests sent by the async operations, checked by awaitAll. The blocking
+   * operations are not tracked, their errors are left to the caller.
+   */
+  private final List<ContextFuture<?>> outstanding = new ArrayList<>();
+
+  /**
+   * Turns the response to a request into the result of the operation.
+   * @param <T> the type of the result
+   */
+  @FunctionalInterface
+  private interface ResponseParser<T> {
+    /**
+     * Parse the response.
+     * @param response the content of the response message
+     * @return the result of the operation
+     * @throws InvalidProtocolBufferException the response has the wrong type
+     * @throws InternalError                  the validator reported an error
+     * @throws InvalidTransactionException    the validator rejected the request
+     */
+    T parse(ByteString response) throws InvalidProtocolBufferException, InternalError, InvalidTransactionException;
+  }
+
+  /**
+   * A request that was sent, resolved once by the first call to get.
+   * @param <T> the type of the result
+   */
+  private static final class PendingRequest<T> implements ContextFuture<T> {
+    /**
+     * The future of the response message.
+     */
+    private final Future future;
+
+    /**
+     * Turns the response into the result.
+     */
+    private final ResponseParser<T> parser;
+
+    /**
+     * System.nanoTime() after which the response is not waited for anymore,
+     * counted from sending so that time spent before get does not extend it.
+     */
+    private final long deadlineNanos;
+
+    /**
+     * Whether the response was received and parsed.
+     */
+    private boolean done;
+
+    /**
+     * The result, valid once done.
+     */
+    private T result;
+
+    /**
+     * The error to rethrow, if the request failed.
+     */
+    private InternalError internalError;
+
+    /**
+     * The error to rethrow, if the request was rejected.
+     */
+    private InvalidTransactionException invalidTransaction;
+
+    /**
+     * Constructor.
+     * @param myFuture the future of the response message
+     * @param myParser turns the response into the result
+     */
+    PendingRequest(final Future myFuture, final ResponseParser<T> myParser) {
+      this.future = myFuture;
+      this.parser = myParser;
+      this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIME_OUT_MILLIS);
+    }
+
+    @Override
+    public synchronized T get() throws InternalError, InvalidTransactionException {
+      if (!done) {
+        done = true;
+        try {
+          long remaining = Math.max(0, deadlineNanos - System.nanoTime());
+          result = parser.parse(future.getResult(remaining, TimeUnit.NANOSECONDS));
+        } catch (InternalError ie) {
+          internalError = ie;
+        } catch (InvalidTransactionException ite) {
+          invalidTransaction = ite;
+        } catch (InterruptedException iee) {
+          internalError = new InternalError(iee.toString());
+        } catch (InvalidProtocolBufferException ipbe) {
+          // server didn't respond with the expected response
+          internalError = new InternalError(ipbe.toString());
+        } catch (ValidatorConnectionError vce) {
+          internalError = new InternalError(vce.toString());
+        } catch (Exception e) {
+          internalError = new InternalError(e.toString());
+        }
+      }
+      if (internalError != null) {
+        throw internalError;
+      }
+      if (invalidTransaction != null) {
+        throw invalidTransaction;
+      }
+      return result;
+    }
+  }
 
   /**
    * The constructor for this class.
@@ -59,6 +169,32 @@ public class StreamContext implements Context {
     this.contextId = myContextId;
   }
 
+  /**
+   * Send a request.
+   * @param type    the message type of the request
+   * @param content the request
+   * @param parser  turns the response into the result
+   * @param <T>     the type of the result
+   * @return ContextFuture of the result
+   */
+  private <T> ContextFuture<T> send(final Message.MessageType type, final ByteString content,
+      final ResponseParser<T> parser) {
+    return new PendingRequest<>(stream.send(type, content), parser);
+  }
+
+  /**
+   * Keep track of a request sent by an async operation for awaitAll.
+   * @param request the request
+   * @param <T>     the type of the result
+   * @return the request
+   */
+  private <T> ContextFuture<T> track(final ContextFuture<T> request) {
+    synchronized (outstanding) {
+      outstanding.add(request);
+    }
+    return request;
+  }
+
   /**
    * Make a Get request on a specific context specified by contextId.
    * @param addresses a collection of address Strings
@@ -70,33 +206,33 @@ public class StreamContext implements Context {
   @Override
   public final Map<String, ByteString> getState(final Collection<String> addresses)
       throws InternalError, InvalidTransactionException {
+    return sendGetState(addresses).get();
+  }
+
+  @Override
+  public final ContextFuture<Map<String, ByteString>> getStateAsync(final Collection<String> addresses) {
+    return track(sendGetState(addresses));
+  }
+
+  /**
+   * Build and send the request of getState.
+   * @param addresses a collection of address Strings
+   * @return ContextFuture of the values by address
+   */
+  private ContextFuture<Map<String, ByteString>> sendGetState(final Collection<String> addresses) {
     TpStateGetRequest getRequest = TpStateGetRequest.newBuilder().addAllAddresses(addresses)
         .setContextId(this.contextId).build();
-    Future future = stream.send(Message.MessageType.TP_STATE_GET_REQUEST, getRequest.toByteString());
-    TpStateGetResponse getResponse = null;
-    try {
-      getResponse = TpStateGetResponse.parseFrom(future.getResult(TIME_OUT));
-    } catch (InterruptedException iee) {
-      throw new InternalError(iee.toString());
-    } catch (InvalidProtocolBufferException ipbe) {
-      // server didn't respond with a GetResponse
-      throw new InternalError(ipbe.toString());
-    } catch (ValidatorConnectionError vce) {
-      throw new InternalError(vce.toString());
-    } catch (Exception e) {
-      throw new InternalError(e.toString());
-    }
-    Map<String, ByteString> results = new HashMap<String, ByteString>();
-    if (getResponse != null) {
+    return send(Message.MessageType.TP_STATE_GET_REQUEST, getRequest.toByteString(), response -> {
+      TpStateGetResponse getResponse = TpStateGetResponse.parseFrom(response);
       if (getResponse.getStatus() == TpStateGetResponse.Status.AUTHORIZATION_ERROR) {
         throw new InvalidTransactionException("Tried to get unauthorized address " + addresses.toString());
       }
+      Map<String, ByteString> results = new HashMap<String, ByteString>();
       for (TpStateEntry entry : getResponse.getEntriesList()) {
         results.put(entry.getAddress(), entry.getData());
       }
-    }
-
-    return results;
+      return results;
+    });
   }
 
   /**
@@ -110,6 +246,22 @@ public class StreamContext implements Context {
   @Override
   public final Collection<String> setState(final Collection<java.util.Map.Entry<String, ByteString>> addressValuePairs)
       throws InternalError, InvalidTransactionException {
+    return sendSetState(addressValuePairs).get();
+  }
+
+  @Override
+  public final ContextFuture<Collection<String>> setStateAsync(
+      final Collection<java.util.Map.Entry<String, ByteString>> addressValuePairs) {
+    return track(sendSetState(addressValuePairs));
+  }
+
+  /**
+   * Build and send the request of setState.
+   * @param addressValuePairs A collection of Map.Entry's
+   * @return ContextFuture of the addresses that were set
+   */
+  private ContextFuture<Collection<String>> sendSetState(
+      final Collection<java.util.Map.Entry<String, ByteString>> addressValuePairs) {
     ArrayList<TpStateEntry> entryArrayList = new ArrayList<TpStateEntry>();
     for (Map.Entry<String, ByteString> entry : addressValuePairs) {
       TpStateEntry ourTpStateEntry = TpStateEntry.newBuilder().setAddress(entry.getKey()).setData(entry.getValue())
@@ -118,94 +270,101 @@ public class StreamContext implements Context {
     }
     TpStateSetRequest setRequest = TpStateSetRequest.newBuilder().addAllEntries(entryArrayList)
         .setContextId(this.contextId).build();
-    Future future = stream.send(Message.MessageType.TP_STATE_SET_REQUEST, setRequest.toByteString());
-    TpStateSetResponse setResponse = null;
-    try {
-      setResponse = TpStateSetResponse.parseFrom(future.getResult(TIME_OUT));
-    } catch (InterruptedException iee) {
-      throw new InternalError(iee.toString());
-
-    } catch (InvalidProtocolBufferException ipbe) {
-      // server didn't respond with a SetResponse
-      throw new InternalError(ipbe.toString());
-    } catch (ValidatorConnectionError vce) {
-      throw new InternalError(vce.toString());
-    } catch (Exception e) {
-      throw new InternalError(e.toString());
-    }
-    ArrayList<String> addressesThatWereSet = new ArrayList<String>();
-    if (setResponse != null) {
+    return send(Message.MessageType.TP_STATE_SET_REQUEST, setRequest.toByteString(), response -> {
+      TpStateSetResponse setResponse = TpStateSetResponse.parseFrom(response);
       if (setResponse.getStatus() == TpStateSetResponse.Status.AUTHORIZATION_ERROR) {
         throw new InvalidTransactionException("Tried to set unauthorized address " + addressValuePairs.toString());
       }
-      for (String address : setResponse.getAddressesList()) {
-        addressesThatWereSet.add(address);
-      }
-    }
-
-    return addressesThatWereSet;
+      return new ArrayList<String>(setResponse.getAddressesList());
+    });
   }
 
   @Override
   public final Collection<String> deleteState(final Collection<String> addresses)
       throws InternalError, InvalidTransactionException {
+    return sendDeleteState(addresses).get();
+  }
+
+  @Override
+  public final ContextFuture<Collection<String>> deleteStateAsync(final Collection<String> addresses) {
+    return track(sendDeleteState(addresses));
+  }
+
+  /**
+   * Build and send the request of deleteState.
+   * @param addresses a collection of address Strings
+   * @return ContextFuture of the addresses that were deleted
+   */
+  private ContextFuture<Collection<String>> sendDeleteState(final Collection<String> addresses) {
     TpStateDeleteRequest delRequest = TpStateDeleteRequest.newBuilder().addAllAddresses(addresses)
         .setContextId(this.contextId).build();
-    Future future = stream.send(Message.MessageType.TP_STATE_DELETE_REQUEST, delRequest.toByteString());
-    TpStateDeleteResponse delResponse = null;
-    try {
-      delResponse = TpStateDeleteResponse.parseFrom(future.getResult(TIME_OUT));
-    } catch (InterruptedException iee) {
-      throw new InternalError(iee.toString());
-    } catch (InvalidProtocolBufferException ipbe) {
-      // server didn't respond with a DeleteResponse
-      throw new InternalError(ipbe.toString());
-    } catch (ValidatorConnectionError vce) {
-      throw new InternalError(vce.toString());
-    } catch (Exception e) {
-      throw new InternalError(e.toString());
-    }
-    List<String> results = new ArrayList<>();
-    if (delResponse != null) {
+    return send(Message.MessageType.TP_STATE_DELETE_REQUEST, delRequest.toByteString(), response -> {
+      TpStateDeleteResponse delResponse = TpStateDeleteResponse.parseFrom(response);
       if (delResponse.getStatus() == TpStateDeleteResponse.Status.AUTHORIZATION_ERROR) {
         throw new InvalidTransactionException("Tried to delete unauthorized address " + addresses.toString());
       }
-      for (String entry : delResponse.getAddressesList()) {
-        results.add(entry);
-      }
-    }
-
-    return results;
+      return new ArrayList<String>(delResponse.getAddressesList());
+    });
   }
 
   @Override
   public final void addReceiptData(final ByteString data) throws InternalError {
-    TpReceiptAddDataRequest addDataRequest = TpReceiptAddDataRequest.newBuilder().setContextId(contextId).setData(data)
-        .build();
-    Future future = stream.send(Message.MessageType.TP_RECEIPT_ADD_DATA_REQUEST, addDataRequest.toByteString());
-    TpReceiptAddDataResponse addDataResponse = null;
     try {
-      addDataResponse = TpReceiptAddDataResponse.parseFrom(future.getResult(TIME_OUT));
-    } catch (InterruptedException iee) {
-      throw new InternalError(iee.toString());
-    } catch (InvalidProtocolBufferException ipbe) {
-      // server didn't respond with a ReceiptAddResponse
-      throw new InternalError(ipbe.toString());
-    } catch (ValidatorConnectionError vce) {
-      throw new InternalError(vce.toString());
-    } catch (Exception e) {
-      throw new InternalError(e.toString());
+      sendAddReceiptData(data).get();
+    } catch (InvalidTransactionException ite) {
+      // not reported for receipt data
+      throw new InternalError(ite.toString());
     }
-    if (addDataResponse != null) {
+  }
+
+  @Override
+  public final ContextFuture<Void> addReceiptDataAsync(final ByteString data) {
+    return track(sendAddReceiptData(data));
+  }
+
+  /**
+   * Build and send the request of addReceiptData.
+   * @param data The data to add
+   * @return ContextFuture that completes when the data was added
+   */
+  private ContextFuture<Void> sendAddReceiptData(final ByteString data) {
+    TpReceiptAddDataRequest addDataRequest = TpReceiptAddDataRequest.newBuilder().setContextId(contextId).setData(data)
+        .build();
+    return send(Message.MessageType.TP_RECEIPT_ADD_DATA_REQUEST, addDataRequest.toByteString(), response -> {
+      TpReceiptAddDataResponse addDataResponse = TpReceiptAddDataResponse.parseFrom(response);
       if (addDataResponse.getStatus() == TpReceiptAddDataResponse.Status.ERROR) {
         throw new InternalError(String.format("Failed to add receipt data %s", data));
       }
-    }
+      return null;
+    });
   }
 
   @Override
   public final void addEvent(final String eventType, final Collection<Entry<String, String>> attributes,
       final ByteString data) throws InternalError {
+    try {
+      sendAddEvent(eventType, attributes, data).get();
+    } catch (InvalidTransactionException ite) {
+      // not reported for events
+      throw new InternalError(ite.toString());
+    }
+  }
+
+  @Override
+  public final ContextFuture<Void> addEventAsync(final String eventType,
+      final Collection<Entry<String, String>> attributes, final ByteString data) {
+    return track(sendAddEvent(eventType, attributes, data));
+  }
+
+  /**
+   * Build and send the request of addEvent.
+   * @param eventType  the event type
+   * @param attributes the event attributes
+   * @param data       the event data or null
+   * @return ContextFuture that completes when the event was added
+   */
+  private ContextFuture<Void> sendAddEvent(final String eventType,
+      final Collection<Entry<String, String>> attributes, final ByteString data) {
     List<Attribute> attList = new ArrayList<>();
     for (Map.Entry<String, String> entry : attributes) {
       Attribute att = Attribute.newBuilder().setKey(entry.getKey()).setValue(entry.getValue()).build();
@@ -218,24 +377,49 @@ public class StreamContext implements Context {
     Event evt = evtBuilder.build();
     TpEventAddRequest evtAddRequest = TpEventAddRequest.newBuilder().setContextId(contextId).setEvent(evt).build();
 
-    Future future = stream.send(Message.MessageType.TP_EVENT_ADD_REQUEST, evtAddRequest.toByteString());
-    TpEventAddResponse evtAddResponse = null;
-    try {
-      evtAddResponse = TpEventAddResponse.parseFrom(future.getResult(TIME_OUT));
-    } catch (InterruptedException iee) {
-      throw new InternalError(iee.toString());
-    } catch (InvalidProtocolBufferException ipbe) {
-      // server didn't respond with a EventAddResponse
-      throw new InternalError(ipbe.toString());
-    } catch (ValidatorConnectionError vce) {
-      throw new InternalError(vce.toString());
-    } catch (Exception e) {
-      throw new InternalError(e.toString());
-    }
-    if (evtAddResponse != null) {
+    return send(Message.MessageType.TP_EVENT_ADD_REQUEST, evtAddRequest.toByteString(), response -> {
+      TpEventAddResponse evtAddResponse = TpEventAddResponse.parseFrom(response);
       if (evtAddResponse.getStatus() == TpEventAddResponse.Status.ERROR) {
         throw new InternalError(String.format("Failed to add event %s, %s, %s", eventType, attributes, data));
       }
+      return null;
+    });
+  }
+
+  /**
+   * Wait for all requests sent through this context. Every request is waited
+   * for before the first error is thrown, so none is left in flight.
+   * @throws InternalError               something went wrong processing
+   *                                     transaction
+   * @throws InvalidTransactionException an invalid transaction was encountered
+   */
+  @Override
+  public final void awaitAll() throws InternalError, InvalidTransactionException {
+    List<ContextFuture<?>> requests;
+    synchronized (outstanding) {
+      requests = new ArrayList<>(outstanding);
+      outstanding.clear();
+    }
+    InternalError internalError = null;
+    InvalidTransactionException invalidTransaction = null;
+    for (ContextFuture<?> request : requests) {
+      try {
+        request.get();
+      } catch (InternalError ie) {
+        if (internalError == null) {
+          internalError = ie;
+        }
+      } catch (InvalidTransactionException ite) {
+        if (invalidTransaction == null) {
+          invalidTransaction = ite;
+        }
+      }
+    }
+    if (invalidTransaction != null) {
+      throw invalidTransaction;
+    }
+    if (internalError != null) {
+      throw internalError;
     }
   }
 
@@ -25,7 +25,16 @@ import sawtooth.sdk.processor.exceptions.ValidatorConnectionError;
 import sawtooth.sdk.protobuf.*;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,46 +50,67 @@ public class TransactionProcessor implements Runnable {
   /** List of transaction handlers for this processor. */
   private ArrayList<TransactionHandler> handlers;
 
+  /** Transaction handlers by family name and family version, used to dispatch requests. */
+  private final Map<String, Map<String, TransactionHandler>> handlersByFamily =
+      new ConcurrentHashMap<>();
+
   /** The current message for this processor. */
   private Message currentMessage;
 
   /** Whether or not this processor has been registered. */
-  private boolean registered;
+  private volatile boolean registered;
+
+  /** Number of transactions processed concurrently, registered as max occupancy. */
+  private final int workerThreads;
+
+  /** Runs the handlers, so that a transaction waiting for state does not hold up the others. */
+  private final ExecutorService workers;
+
+  /** Registers the handlers again after a disconnect, off the thread that dispatches transactions. */
+  private final ExecutorService control =
+      Executors.newSingleThreadExecutor(
+          r -> {
+            Thread thread = new Thread(r, "TransactionProcessor-control");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /** Whether a re-registration is queued or running on the control thread. */
+  private final AtomicBoolean reregistering = new AtomicBoolean();
+
+  /** Whether handlers get a BufferedContext that sends all writes after apply succeeded. */
+  private volatile boolean bufferWrites;
+
+  /** Time in seconds to wait for the transactions in progress on shutdown. */
+  private static final int SHUTDOWN_TIMEOUT = 10;
+
+  /** Time in seconds the run loop waits for a message before it checks whether it was stopped. */
+  private static final long RECEIVE_TIMEOUT = 1;
+
+  /** Whether the run loop should keep going, cleared by stop. */
+  private volatile boolean running = true;
+
+  /** Set by stop, the run loop then ends once no message arrives within RECEIVE_TIMEOUT. */
+  private volatile boolean draining;
+
+  /** System.nanoTime after which the run loop stops draining, valid once draining is set. */
+  private volatile long drainDeadline;
+
+  /** Whether stop was called, later calls return right away. */
+  private final AtomicBoolean stopped = new AtomicBoolean();
+
+  /** The thread of the run loop, joined by stop. */
+  private volatile Thread runThread;
 
   /** Handles shutting down this transaction processor. */
   class Shutdown extends Thread {
     @Override
     public void run() {
       LOGGER.info("Start Shutdown of Transaction Processor.");
-      if (!TransactionProcessor.this.registered) {
-        return;
-      }
-      if (TransactionProcessor.this.getCurrentMessage() != null) {
-        LOGGER.info(TransactionProcessor.this.getCurrentMessage().toString());
-      }
       try {
-        TpUnregisterRequest unregisterRequest = TpUnregisterRequest.newBuilder().build();
-        LOGGER.info("Send TpUnregisterRequest");
-        Future fut =
-            TransactionProcessor.this.stream.send(
-                Message.MessageType.TP_UNREGISTER_REQUEST, unregisterRequest.toByteString());
-        ByteString response = fut.getResult(1);
-        Message message = TransactionProcessor.this.getCurrentMessage();
-        if (message == null) {
-          message = TransactionProcessor.this.stream.receive(1);
-        }
-        LOGGER.info("Finish processing any left over messages.");
-        while (message != null) {
-          TransactionHandler handler = TransactionProcessor.this.findHandler(message);
-          TransactionProcessor.process(message, TransactionProcessor.this.stream, handler);
-          message = TransactionProcessor.this.stream.receive(1);
-        }
+        TransactionProcessor.this.stop(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
       } catch (InterruptedException ie) {
         ie.printStackTrace();
-      } catch (TimeoutException ter) {
-        LOGGER.info("TimeoutException on shutdown");
-      } catch (ValidatorConnectionError vce) {
-        LOGGER.info(vce.toString());
       }
     }
   }
@@ -91,32 +121,68 @@ public class TransactionProcessor implements Runnable {
    * @param address the zmq address
    */
   public TransactionProcessor(final String address) {
+    this(address, 1);
+  }
+
+  /**
+   * constructor.
+   *
+   * @param address the zmq address
+   * @param workerThreads number of transactions to process concurrently, registered with the
+   *     validator as max occupancy
+   */
+  public TransactionProcessor(final String address, final int workerThreads) {
+    if (workerThreads < 1) {
+      throw new IllegalArgumentException("At least one worker thread is required");
+    }
     this.stream = new ZmqStream(address);
     this.handlers = new ArrayList<TransactionHandler>();
     this.currentMessage = null;
     this.registered = false;
+    this.workerThreads = workerThreads;
+    AtomicInteger threadNumber = new AtomicInteger();
+    this.workers =
+        Executors.newFixedThreadPool(
+            workerThreads,
+            r -> new Thread(r, "TransactionProcessor-worker-" + threadNumber.incrementAndGet()));
     Runtime.getRuntime().addShutdownHook(new Shutdown());
   }
 
+  /**
+   * Build the request to register a handler with the validator.
+   *
+   * @param handler the handler to register
+   * @return the register request
+   */
+  private TpRegisterRequest buildRegisterRequest(final TransactionHandler handler) {
+    return TpRegisterRequest.newBuilder()
+        .setFamily(handler.transactionFamilyName())
+        .addAllNamespaces(handler.getNameSpaces())
+        .setVersion(handler.getVersion())
+        .setMaxOccupancy(this.workerThreads)
+        .build();
+  }
+
   /**
    * add a handler that will be run from within the run method.
    *
    * @param handler implements that TransactionHandler interface
    */
   public final void addHandler(final TransactionHandler handler) {
-    TpRegisterRequest registerRequest =
-        TpRegisterRequest.newBuilder()
-            .setFamily(handler.transactionFamilyName())
-            .addAllNamespaces(handler.getNameSpaces())
-            .setVersion(handler.getVersion())
-            .setMaxOccupancy(1)
-            .build();
+    TpRegisterRequest registerRequest = this.buildRegisterRequest(handler);
     try {
       Future fut =
           this.stream.send(Message.MessageType.TP_REGISTER_REQUEST, registerRequest.toByteString());
       fut.getResult();
       this.registered = true;
-      this.handlers.add(handler);
+      this.handlersByFamily
+          .computeIfAbsent(handler.transactionFamilyName(), family -> new ConcurrentHashMap<>())
+          .put(handler.getVersion(), handler);
+      synchronized (this.handlers) {
+        this.handlers.add(handler);
+        // Wakes up the run loop if it waits for the first handler
+        this.handlers.notifyAll();
+      }
     } catch (InterruptedException ie) {
       ie.printStackTrace();
     } catch (ValidatorConnectionError vce) {
@@ -125,136 +191,344 @@ public class TransactionProcessor implements Runnable {
   }
 
   /**
-   * Get the current message that is being processed.
+   * Buffer the writes, events and receipt data of each transaction and send them together once
+   * apply returns, see BufferedContext. Nothing is sent for transactions whose apply throws.
    *
-   * @return the current message
+   * @param buffer whether to buffer
    */
-  private Message getCurrentMessage() {
-    return this.currentMessage;
+  public final void setBufferWrites(final boolean buffer) {
+    this.bufferWrites = buffer;
+  }
+
+  /**
+   * Run the processor on a thread of its own.
+   *
+   * @return the thread
+   */
+  public final Thread start() {
+    Thread thread = new Thread(this, "TransactionProcessor");
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Stop the processor. The validator is told to send no more transactions, then the requests it
+   * already sent are received and handed to the workers until none arrives within RECEIVE_TIMEOUT
+   * or the deadline passes. The transactions in progress get until the deadline to finish, workers
+   * still busy after that are interrupted. Finally the stream is closed.
+   *
+   * @param timeout time to wait for the transactions in progress
+   * @param unit the unit of the timeout
+   * @throws InterruptedException an interrupt happened while waiting
+   */
+  public final void stop(final long timeout, final TimeUnit unit) throws InterruptedException {
+    if (!this.stopped.compareAndSet(false, true)) {
+      return;
+    }
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    if (this.registered) {
+      this.unregister(deadline);
+    }
+    this.drainDeadline = deadline;
+    this.draining = true;
+    synchronized (this.handlers) {
+      this.handlers.notifyAll();
+    }
+    Thread thread = this.runThread;
+    if (thread == null || thread == Thread.currentThread()) {
+      // Nobody else receives, answer the requests that are queued already
+      while (!this.drainExpired() && this.receiveAndDispatch()) {
+        continue;
+      }
+    } else {
+      thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+    }
+    this.running = false;
+    this.control.shutdownNow();
+    this.workers.shutdown();
+    if (!this.workers.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+      LOGGER.warning("Transactions still in progress after the shutdown timeout, interrupting.");
+      this.workers.shutdownNow();
+    }
+    try {
+      this.stream.close();
+    } catch (Exception e) {
+      LOGGER.log(Level.WARNING, "Closing the stream failed: " + e.toString());
+    }
+  }
+
+  /**
+   * Whether the deadline of stop passed.
+   *
+   * @return true if draining and the deadline passed
+   */
+  private boolean drainExpired() {
+    return this.draining && System.nanoTime() - this.drainDeadline >= 0;
+  }
+
+  /**
+   * Unregister from the validator, so that it sends no more transactions.
+   *
+   * @param deadline System.nanoTime by which the validator should have responded
+   * @throws InterruptedException an interrupt happened while waiting
+   */
+  private void unregister(final long deadline) throws InterruptedException {
+    try {
+      TpUnregisterRequest unregisterRequest = TpUnregisterRequest.newBuilder().build();
+      LOGGER.info("Send TpUnregisterRequest");
+      Future fut =
+          this.stream.send(
+              Message.MessageType.TP_UNREGISTER_REQUEST, unregisterRequest.toByteString());
+      fut.getResult(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      this.registered = false;
+    } catch (TimeoutException ter) {
+      LOGGER.info("TimeoutException on shutdown");
+    } catch (ValidatorConnectionError vce) {
+      LOGGER.info(vce.toString());
+    }
   }
 
   /**
    * Used to process a message.
    *
    * @param message The Message to process.
+   * @param transactionRequest The TpProcessRequest parsed from the message.
    * @param stream The Stream to use to send back responses.
    * @param handler The handler that should be used to process the message.
+   * @param buffered Whether to buffer the writes of the handler.
    */
   private static void process(
-      final Message message, final Stream stream, final TransactionHandler handler) {
-    try {
-      TpProcessRequest transactionRequest = TpProcessRequest.parseFrom(message.getContent());
-      Context state = new StreamContext(stream, transactionRequest.getContextId());
+      final Message message,
+      final TpProcessRequest transactionRequest,
+      final Stream stream,
+      final TransactionHandler handler,
+      final boolean buffered) {
+    Context state = new StreamContext(stream, transactionRequest.getContextId());
+    if (buffered) {
+      state = new BufferedContext(state);
+    }
 
-      TpProcessResponse.Builder builder = TpProcessResponse.newBuilder();
-      try {
-        handler.apply(transactionRequest, state);
-        builder.setStatus(TpProcessResponse.Status.OK);
-      } catch (InvalidTransactionException ite) {
-        LOGGER.log(Level.WARNING, "Invalid Transaction: " + ite.toString());
-        builder.setStatus(TpProcessResponse.Status.INVALID_TRANSACTION);
-        builder.setMessage(ite.getMessage());
-        if (ite.getExtendedData() != null) {
-          builder.setExtendedData(ByteString.copyFrom(ite.getExtendedData()));
-        }
-      } catch (InternalError ie) {
-        LOGGER.log(Level.WARNING, "State Exception!: " + ie.toString());
-        builder.setStatus(TpProcessResponse.Status.INTERNAL_ERROR);
-        builder.setMessage(ie.getMessage());
-        if (ie.getExtendedData() != null) {
-          builder.setExtendedData(ByteString.copyFrom(ie.getExtendedData()));
-        }
+    TpProcessResponse.Builder builder = TpProcessResponse.newBuilder();
+    try {
+      handler.apply(transactionRequest, state);
+      // Sends the buffered writes and fails the transaction if an operation the handler did not wait
+      // for failed
+      state.awaitAll();
+      builder.setStatus(TpProcessResponse.Status.OK);
+    } catch (InvalidTransactionException ite) {
+      LOGGER.log(Level.WARNING, "Invalid Transaction: " + ite.toString());
+      builder.setStatus(TpProcessResponse.Status.INVALID_TRANSACTION);
+      builder.setMessage(ite.getMessage());
+      if (ite.getExtendedData() != null) {
+        builder.setExtendedData(ByteString.copyFrom(ite.getExtendedData()));
+      }
+    } catch (InternalError ie) {
+      LOGGER.log(Level.WARNING, "State Exception!: " + ie.toString());
+      builder.setStatus(TpProcessResponse.Status.INTERNAL_ERROR);
+      builder.setMessage(ie.getMessage());
+      if (ie.getExtendedData() != null) {
+        builder.setExtendedData(ByteString.copyFrom(ie.getExtendedData()));
       }
-      stream.sendBack(
-          Message.MessageType.TP_PROCESS_RESPONSE,
-          message.getCorrelationId(),
-          builder.build().toByteString());
-
-    } catch (InvalidProtocolBufferException ipbe) {
-      LOGGER.info("Received Bytestring that wasn't requested that isn't TransactionProcessRequest");
     }
+    stream.sendBack(
+        Message.MessageType.TP_PROCESS_RESPONSE,
+        message.getCorrelationId(),
+        builder.build().toByteString());
   }
 
   /**
-   * Find the handler that should be used to process the given message.
+   * Parse the TpProcessRequest of a message, the request is handed on to the handler as is.
    *
-   * @param message The message that has the TpProcessRequest that the header that will be checked
-   *     against the handler.
-   * @return the handler that should be used to processor the given message
+   * @param message The message that has the TpProcessRequest.
+   * @return the parsed request or null if the message isn't a TpProcessRequest
    */
-  private TransactionHandler findHandler(final Message message) {
+  private static TpProcessRequest parseRequest(final Message message) {
     try {
-      TpProcessRequest transactionRequest =
-          TpProcessRequest.parseFrom(this.currentMessage.getContent());
-      TransactionHeader header = transactionRequest.getHeader();
-      for (int i = 0; i < this.handlers.size(); i++) {
-        TransactionHandler handler = this.handlers.get(i);
-        if (header.getFamilyName().equals(handler.transactionFamilyName())
-            && header.getFamilyVersion().equals(handler.getVersion())) {
-          return handler;
-        }
-      }
-      LOGGER.info("Missing handler for header: " + header.toString());
+      return TpProcessRequest.parseFrom(message.getContent());
     } catch (InvalidProtocolBufferException ipbe) {
       LOGGER.info("Received Message that isn't a TransactionProcessRequest");
       ipbe.printStackTrace();
+      return null;
     }
-    return null;
   }
 
-  @Override
-  public final void run() {
-    while (true) {
-      if (!this.handlers.isEmpty()) {
-        this.currentMessage = this.stream.receive();
-        if (this.currentMessage != null) {
-          if (this.currentMessage.getMessageType() == Message.MessageType.PING_REQUEST) {
-            LOGGER.info("Recieved Ping Message.");
-            PingResponse pingResponse = PingResponse.newBuilder().build();
-            this.stream.sendBack(
-                Message.MessageType.PING_RESPONSE,
-                this.currentMessage.getCorrelationId(),
-                pingResponse.toByteString());
-            this.currentMessage = null;
-          } else if (this.currentMessage.getMessageType()
-              == Message.MessageType.TP_PROCESS_REQUEST) {
-            TransactionHandler handler = this.findHandler(this.currentMessage);
-            if (handler == null) {
-              break;
-            }
-            TransactionProcessor.process(this.currentMessage, this.stream, handler);
-            this.currentMessage = null;
-          } else {
-            LOGGER.info("Unknown Message Type: " + this.currentMessage.getMessageType());
-            this.currentMessage = null;
-          }
-        } else {
-          // Disconnect
-          LOGGER.info("The Validator disconnected, trying to register.");
-          this.registered = false;
-          for (int i = 0; i < this.handlers.size(); i++) {
-            TransactionHandler handler = this.handlers.get(i);
-            TpRegisterRequest registerRequest =
-                TpRegisterRequest.newBuilder()
-                    .setFamily(handler.transactionFamilyName())
-                    .addAllNamespaces(handler.getNameSpaces())
-                    .setVersion(handler.getVersion())
-                    .build();
+  /**
+   * Find the handler that should be used to process the given request.
+   *
+   * @param transactionRequest The TpProcessRequest that has the header that will be checked against
+   *     the handler.
+   * @return the handler that should be used to processor the given request
+   */
+  private TransactionHandler findHandler(final TpProcessRequest transactionRequest) {
+    TransactionHeader header = transactionRequest.getHeader();
+    Map<String, TransactionHandler> versions = this.handlersByFamily.get(header.getFamilyName());
+    TransactionHandler handler = versions == null ? null : versions.get(header.getFamilyVersion());
+    if (handler == null) {
+      LOGGER.info("Missing handler for header: " + header.toString());
+    }
+    return handler;
+  }
+
+  /**
+   * Answer a process request that no handler can process. Without a response the validator would
+   * wait for it until it times out.
+   *
+   * @param message The Message that could not be processed.
+   * @param reason Why it could not be processed.
+   */
+  private void respondError(final Message message, final String reason) {
+    LOGGER.log(Level.WARNING, reason);
+    TpProcessResponse response =
+        TpProcessResponse.newBuilder()
+            .setStatus(TpProcessResponse.Status.INTERNAL_ERROR)
+            .setMessage(reason)
+            .build();
+    this.stream.sendBack(
+        Message.MessageType.TP_PROCESS_RESPONSE,
+        message.getCorrelationId(),
+        response.toByteString());
+  }
+
+  /**
+   * Hand a process request to the workers.
+   *
+   * @param message The Message with the TpProcessRequest.
+   */
+  private void dispatch(final Message message) {
+    final TpProcessRequest transactionRequest = parseRequest(message);
+    if (transactionRequest == null) {
+      this.respondError(message, "Received Message that isn't a TransactionProcessRequest");
+      return;
+    }
+    final TransactionHandler handler = this.findHandler(transactionRequest);
+    if (handler == null) {
+      TransactionHeader header = transactionRequest.getHeader();
+      this.respondError(
+          message,
+          "No handler for " + header.getFamilyName() + " " + header.getFamilyVersion());
+      return;
+    }
+    // The response is sent back by correlation id, so the order of completion does not matter
+    final boolean buffered = this.bufferWrites;
+    try {
+      this.workers.execute(
+          () ->
+              TransactionProcessor.process(
+                  message, transactionRequest, this.stream, handler, buffered));
+    } catch (RejectedExecutionException ree) {
+      LOGGER.log(Level.WARNING, "Transaction received after shutdown: " + ree.toString());
+    }
+  }
 
+  /**
+   * Register all handlers again after the validator disconnected. Runs on the control thread, the
+   * run loop keeps handing out the transactions that are received in the meantime.
+   */
+  private void scheduleReregister() {
+    if (!this.reregistering.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      this.control.execute(
+          () -> {
             try {
-              Future fut =
-                  this.stream.send(
-                      Message.MessageType.TP_REGISTER_REQUEST, registerRequest.toByteString());
-              fut.getResult();
-              this.registered = true;
-            } catch (InterruptedException ie) {
-              LOGGER.log(Level.WARNING, ie.toString());
-            } catch (ValidatorConnectionError vce) {
-              LOGGER.log(Level.WARNING, vce.toString());
+              this.reregister();
+            } finally {
+              this.reregistering.set(false);
             }
-          }
+          });
+    } catch (RejectedExecutionException ree) {
+      // Stopped in the meantime
+      this.reregistering.set(false);
+    }
+  }
+
+  /** Register all handlers again after the validator disconnected. */
+  private void reregister() {
+    LOGGER.info("The Validator disconnected, trying to register.");
+    this.registered = false;
+    List<TransactionHandler> toRegister;
+    synchronized (this.handlers) {
+      toRegister = new ArrayList<>(this.handlers);
+    }
+    for (TransactionHandler handler : toRegister) {
+      TpRegisterRequest registerRequest = this.buildRegisterRequest(handler);
+      try {
+        Future fut =
+            this.stream.send(
+                Message.MessageType.TP_REGISTER_REQUEST, registerRequest.toByteString());
+        fut.getResult();
+        this.registered = true;
+      } catch (InterruptedException ie) {
+        LOGGER.log(Level.WARNING, ie.toString());
+      } catch (ValidatorConnectionError vce) {
+        LOGGER.log(Level.WARNING, vce.toString());
+      }
+    }
+  }
+
+  /**
+   * Block until a handler is added or the processor is stopped.
+   *
+   * @return whether the processor is still running
+   */
+  private boolean awaitHandlers() {
+    synchronized (this.handlers) {
+      while (this.handlers.isEmpty() && this.running && !this.draining) {
+        try {
+          this.handlers.wait();
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+    }
+    return this.running;
+  }
+
+  /**
+   * Receive one message and hand it out.
+   *
+   * @return false if draining and no message arrived within RECEIVE_TIMEOUT or the validator
+   *     disconnected, so that nothing more is to be expected
+   */
+  private boolean receiveAndDispatch() {
+    try {
+      this.currentMessage = this.stream.receive(RECEIVE_TIMEOUT);
+    } catch (TimeoutException te) {
+      return !this.draining;
+    }
+    try {
+      // Pings are answered by the stream, they never wait behind transactions
+      if (this.currentMessage != null) {
+        if (this.currentMessage.getMessageType() == Message.MessageType.TP_PROCESS_REQUEST) {
+          this.dispatch(this.currentMessage);
+        } else {
+          LOGGER.info("Unknown Message Type: " + this.currentMessage.getMessageType());
         }
+      } else if (this.draining) {
+        return false;
+      } else if (this.running) {
+        // Disconnect
+        this.scheduleReregister();
+      }
+      return true;
+    } finally {
+      this.currentMessage = null;
+    }
+  }
+
+  @Override
+  public final void run() {
+    this.runThread = Thread.currentThread();
+    if (!this.awaitHandlers()) {
+      return;
+    }
+    while (this.running && !this.drainExpired()) {
+      if (!this.receiveAndDispatch()) {
+        break;
       }
     }
+    LOGGER.info("Transaction Processor stopped.");
   }
 }
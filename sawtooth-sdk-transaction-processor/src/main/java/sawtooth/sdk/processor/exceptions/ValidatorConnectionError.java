@@ -25,4 +25,12 @@ public class ValidatorConnectionError extends Exception {
   public ValidatorConnectionError() {
     super("The connection to the validator was lost");
   }
+
+  /**
+   * The constructor for this class.
+   * @param message what happened to the connection
+   */
+  public ValidatorConnectionError(final String message) {
+    super(message);
+  }
 }
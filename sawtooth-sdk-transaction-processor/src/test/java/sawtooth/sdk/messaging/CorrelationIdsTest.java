@@ -0,0 +1,57 @@
+/* Copyright 2019 Hyperledger Sawtooth Contributors
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+------------------------------------------------------------------------------*/
+package sawtooth.sdk.messaging;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class CorrelationIdsTest {
+
+  private final CorrelationIds ids = new CorrelationIds();
+
+  @Test
+  public void testFormatAndParseRoundTrip() {
+    long first = ids.next();
+    long second = ids.next();
+    assertNotEquals(first, second);
+    assertEquals(first, ids.parse(ids.format(first)));
+    assertEquals(second, ids.parse(ids.format(second)));
+    assertEquals(Long.MAX_VALUE, ids.parse(ids.format(Long.MAX_VALUE)));
+  }
+
+  @Test
+  public void testIdOfOtherStreamIsNone() {
+    CorrelationIds other = new CorrelationIds();
+    assertEquals(CorrelationIds.NONE, ids.parse(other.format(other.next())));
+  }
+
+  @Test
+  public void testNonHexSuffixIsNone() {
+    String id = ids.format(ids.next());
+    assertEquals(CorrelationIds.NONE, ids.parse(id + "g"));
+    assertEquals(CorrelationIds.NONE, ids.parse(id.substring(0, id.length() - 1) + "-"));
+    // Longer than a long in hex
+    assertEquals(CorrelationIds.NONE, ids.parse(ids.format(Long.MAX_VALUE) + "0"));
+  }
+
+  @Test
+  public void testEmptyIdIsNone() {
+    assertEquals(CorrelationIds.NONE, ids.parse(""));
+    // The prefix without a key
+    String id = ids.format(ids.next());
+    assertEquals(CorrelationIds.NONE, ids.parse(id.substring(0, id.lastIndexOf('-') + 1)));
+  }
+}
@@ -0,0 +1,139 @@
+/* Copyright 2019 Hyperledger Sawtooth Contributors
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+------------------------------------------------------------------------------*/
+package sawtooth.sdk.processor;
+
+import com.google.protobuf.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import sawtooth.sdk.processor.exceptions.InternalError;
+import sawtooth.sdk.processor.exceptions.InvalidTransactionException;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class BufferedContextTest {
+
+  private Context delegate;
+  private BufferedContext context;
+
+  @Before
+  public void setUp() {
+    delegate = mock(Context.class);
+    context = new BufferedContext(delegate);
+  }
+
+  private static ByteString value(final String s) {
+    return ByteString.copyFrom(s, UTF_8);
+  }
+
+  private static <K, V> Map.Entry<K, V> entry(final K key, final V value) {
+    return new AbstractMap.SimpleEntry<>(key, value);
+  }
+
+  @Test
+  public void testReadsAreServedFromBuffer() throws Exception {
+    when(delegate.getState(Collections.singletonList("a2")))
+        .thenReturn(Collections.singletonMap("a2", value("stored")));
+
+    context.setState(Collections.singletonList(entry("a1", value("v1"))));
+    Map<String, ByteString> results = context.getState(Arrays.asList("a1", "a2"));
+
+    assertEquals(value("v1"), results.get("a1"));
+    assertEquals(value("stored"), results.get("a2"));
+    // Only the address that was not written is read from the validator
+    verify(delegate).getState(Collections.singletonList("a2"));
+    verifyNoMoreInteractions(delegate);
+  }
+
+  @Test
+  public void testDeletedAddressReadsAsEmpty() throws Exception {
+    context.setState(Collections.singletonList(entry("a1", value("v1"))));
+    context.deleteState(Collections.singletonList("a1"));
+
+    assertEquals(ByteString.EMPTY, context.getState(Collections.singletonList("a1")).get("a1"));
+    verifyZeroInteractions(delegate);
+  }
+
+  @Test
+  public void testLastWriteWinsInFirstWriteOrder() throws Exception {
+    context.setState(Arrays.asList(entry("a1", value("v1")), entry("a2", value("v2"))));
+    context.setState(Collections.singletonList(entry("a1", value("v1-new"))));
+
+    assertEquals(value("v1-new"), context.getState(Collections.singletonList("a1")).get("a1"));
+
+    context.awaitAll();
+    verify(delegate).setStateAsync(Arrays.asList(entry("a1", value("v1-new")), entry("a2", value("v2"))));
+  }
+
+  /**
+   * A handler that writes and then rejects the transaction.
+   */
+  private static void applyAndReject(final Context state) throws InternalError, InvalidTransactionException {
+    state.setState(Collections.singletonList(entry("a1", value("v1"))));
+    state.deleteState(Collections.singletonList("a2"));
+    state.addEvent("event", Collections.emptyList(), value("data"));
+    state.addReceiptData(value("receipt"));
+    throw new InvalidTransactionException("rejected");
+  }
+
+  @Test
+  public void testNothingIsSentWhenApplyThrows() throws Exception {
+    // Like TransactionProcessor, awaitAll is only called after a successful apply
+    try {
+      applyAndReject(context);
+      context.awaitAll();
+      fail("apply did not throw");
+    } catch (InvalidTransactionException expected) {
+    }
+    verifyZeroInteractions(delegate);
+  }
+
+  @Test
+  public void testAwaitAllSendsSetsDeletesEventsThenReceipts() throws Exception {
+    // Added in the reverse order of how they are sent
+    context.addReceiptData(value("receipt"));
+    context.addEvent("event", Collections.singletonList(entry("k", "v")), value("data"));
+    context.deleteState(Collections.singletonList("a2"));
+    context.setState(Collections.singletonList(entry("a1", value("v1"))));
+
+    context.awaitAll();
+
+    InOrder order = inOrder(delegate);
+    order.verify(delegate).setStateAsync(Collections.singletonList(entry("a1", value("v1"))));
+    order.verify(delegate).deleteStateAsync(Collections.singletonList("a2"));
+    order.verify(delegate).addEventAsync("event", Collections.singletonList(entry("k", "v")), value("data"));
+    order.verify(delegate).addReceiptDataAsync(value("receipt"));
+    order.verify(delegate).awaitAll();
+    verifyNoMoreInteractions(delegate);
+
+    // The buffer is empty after it was sent
+    context.awaitAll();
+    verify(delegate, times(2)).awaitAll();
+    verifyNoMoreInteractions(delegate);
+  }
+}
@@ -0,0 +1,163 @@
+/* Copyright 2019 Hyperledger Sawtooth Contributors
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+------------------------------------------------------------------------------*/
+package sawtooth.sdk.processor;
+
+import com.google.protobuf.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import sawtooth.sdk.messaging.Future;
+import sawtooth.sdk.messaging.Stream;
+import sawtooth.sdk.processor.exceptions.InternalError;
+import sawtooth.sdk.processor.exceptions.InvalidTransactionException;
+import sawtooth.sdk.protobuf.Message;
+import sawtooth.sdk.protobuf.TpStateSetResponse;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class StreamContextTest {
+
+  private static final long TIME_OUT_MILLIS = 2000;
+
+  private Stream stream;
+  private StreamContext context;
+
+  @Before
+  public void setUp() {
+    stream = mock(Stream.class);
+    context = new StreamContext(stream, "context");
+  }
+
+  private static Collection<Map.Entry<String, ByteString>> write(final String address) {
+    return Collections.singletonList(new AbstractMap.SimpleEntry<>(address, ByteString.copyFrom("v", UTF_8)));
+  }
+
+  private static Future response(final TpStateSetResponse.Status status) throws Exception {
+    Future future = mock(Future.class);
+    when(future.getResult(anyLong(), any(TimeUnit.class))).thenReturn(
+        TpStateSetResponse.newBuilder().setStatus(status).addAddresses("a").build().toByteString());
+    return future;
+  }
+
+  private static Future timedOut() throws Exception {
+    Future future = mock(Future.class);
+    when(future.getResult(anyLong(), any(TimeUnit.class))).thenThrow(new TimeoutException());
+    return future;
+  }
+
+  @Test
+  public void testAwaitAllWaitsForEveryRequest() throws Exception {
+    Future failed = timedOut();
+    Future rejected = response(TpStateSetResponse.Status.AUTHORIZATION_ERROR);
+    Future ok = response(TpStateSetResponse.Status.OK);
+    when(stream.send(eq(Message.MessageType.TP_STATE_SET_REQUEST), any(ByteString.class)))
+        .thenReturn(failed, rejected, ok);
+
+    context.setStateAsync(write("a1"));
+    context.setStateAsync(write("a2"));
+    context.setStateAsync(write("a3"));
+    try {
+      context.awaitAll();
+      fail("awaitAll did not throw");
+    } catch (InvalidTransactionException expected) {
+      // Rejected wins over the InternalError of the earlier request
+    }
+    verify(failed).getResult(anyLong(), any(TimeUnit.class));
+    verify(rejected).getResult(anyLong(), any(TimeUnit.class));
+    verify(ok).getResult(anyLong(), any(TimeUnit.class));
+
+    // The requests are not waited for again
+    context.awaitAll();
+  }
+
+  @Test
+  public void testAwaitAllThrowsInternalError() throws Exception {
+    Future ok = response(TpStateSetResponse.Status.OK);
+    Future failed = timedOut();
+    when(stream.send(eq(Message.MessageType.TP_STATE_SET_REQUEST), any(ByteString.class)))
+        .thenReturn(ok, failed);
+
+    context.setStateAsync(write("a1"));
+    context.setStateAsync(write("a2"));
+    try {
+      context.awaitAll();
+      fail("awaitAll did not throw");
+    } catch (InternalError expected) {
+    }
+  }
+
+  @Test
+  public void testRepeatedGetRethrowsCachedError() throws Exception {
+    Future failed = timedOut();
+    when(stream.send(eq(Message.MessageType.TP_STATE_SET_REQUEST), any(ByteString.class))).thenReturn(failed);
+
+    ContextFuture<Collection<String>> request = context.setStateAsync(write("a1"));
+    InternalError first = null;
+    try {
+      request.get();
+      fail("get did not throw");
+    } catch (InternalError e) {
+      first = e;
+    }
+    try {
+      request.get();
+      fail("get did not throw");
+    } catch (InternalError e) {
+      assertSame(first, e);
+    }
+    try {
+      context.awaitAll();
+      fail("awaitAll did not throw");
+    } catch (InternalError e) {
+      assertSame(first, e);
+    }
+    verify(failed, times(1)).getResult(anyLong(), any(TimeUnit.class));
+  }
+
+  @Test
+  public void testTimeoutIsCountedFromSend() throws Exception {
+    Future ok = response(TpStateSetResponse.Status.OK);
+    when(stream.send(eq(Message.MessageType.TP_STATE_SET_REQUEST), any(ByteString.class))).thenReturn(ok);
+
+    ContextFuture<Collection<String>> request = context.setStateAsync(write("a1"));
+    // The handler does other work before it waits for the response
+    Thread.sleep(500);
+    assertEquals(Collections.singletonList("a"), request.get());
+
+    ArgumentCaptor<Long> timeout = ArgumentCaptor.forClass(Long.class);
+    ArgumentCaptor<TimeUnit> unit = ArgumentCaptor.forClass(TimeUnit.class);
+    verify(ok).getResult(timeout.capture(), unit.capture());
+    long remainingMillis = unit.getValue().toMillis(timeout.getValue());
+    assertTrue("Waited " + remainingMillis + " ms", remainingMillis <= TIME_OUT_MILLIS - 500);
+    assertTrue("Waited " + remainingMillis + " ms", remainingMillis >= 0);
+  }
+}
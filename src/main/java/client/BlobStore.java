@@ -0,0 +1,27 @@
+package client;
+
+import java.io.IOException;
+
+/**
+ * Content-addressed storage for payloads that are too large to be put on chain.
+ * Only the hash and size of a blob are sent in the transaction, receivers fetch the blob from the store.
+ * The store has to be reachable by all clients of a group, e.g. a shared directory or a remote service.
+ */
+public interface BlobStore {
+
+    /**
+     * Store a blob. Storing the same data twice is allowed and yields the same hash.
+     *
+     * @param data data
+     * @return SHA-512 hash of the data in hex
+     * @throws IOException if the blob could not be stored
+     */
+    String put(byte[] data) throws IOException;
+
+    /**
+     * @param hash SHA-512 hash of the data in hex
+     * @return the data or null if no blob with the hash is stored, the caller verifies the hash
+     * @throws IOException if the blob could not be read or the hash is malformed
+     */
+    byte[] get(String hash) throws IOException;
+}
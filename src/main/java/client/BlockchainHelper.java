@@ -2,10 +2,9 @@ package client;
 
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Parser;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.zeromq.ZContext;
-import org.zeromq.ZMQ;
 import sawtooth.sdk.processor.Utils;
 import sawtooth.sdk.protobuf.*;
 import sawtooth.sdk.signing.Signer;
@@ -14,43 +13,82 @@ import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
-public class BlockchainHelper {
+public class BlockchainHelper implements AutoCloseable {
 
     private String baseRestAPIUrl;
     private Signer signer;
     private HyperZMQ hyperZMQ;
     private boolean printRESTAPIResponse = false;
-    private ZContext zContext = new ZContext();
-    private ZMQ.Socket submitSocket;
+    // Reads and submissions use separate sockets, so a slow submit does not hold up reads
+    private final ValidatorConnection queryConnection;
+    private final ValidatorConnection submitConnection;
+    private volatile StateCache stateCache;
+    private volatile PendingWrites pendingWrites;
+
+    static final long REQUEST_TIMEOUT_MS = 10_000;
 
     public static final String KEY_EXCHANGE_RECEIPT_FAMILY = "KeyExchangeReceipt";
     public static final String KEY_EXCHANGE_RECEIPT_NAMESPACE = "ac0cab";
     public static final String CSVSTRINGS_FAMILY = "csvstrings";
     public static final String CSVSTRINGS_NAMESPACE = "2f9d35";
+    // Written by the BlockInfo TP, read by csvstrings compactions for the block time
+    public static final String BLOCK_INFO_NAMESPACE = "00b10c";
 
     BlockchainHelper(HyperZMQ hyperZMQ, Signer signer) {
         this.hyperZMQ = hyperZMQ;
         baseRestAPIUrl = ValidatorAddress.REST_URL_DEFAULT;
         this.signer = signer;
 
-        submitSocket = zContext.createSocket(ZMQ.DEALER);
-        submitSocket.connect(ValidatorAddress.VALIDATOR_URL_DEFAULT);
+        queryConnection = new ValidatorConnection(ValidatorAddress.VALIDATOR_URL_DEFAULT);
+        submitConnection = new ValidatorConnection(ValidatorAddress.VALIDATOR_URL_DEFAULT);
     }
 
     public void setSigner(Signer signer) {
         this.signer = signer;
     }
 
+    /**
+     * @param stateCache cache for state reads or null to disable caching
+     */
+    void setStateCache(StateCache stateCache) {
+        this.stateCache = stateCache;
+    }
+
+    /**
+     * @param pendingWrites overlay of the writes of submitted batches or null to read only committed state
+     */
+    void setPendingWrites(PendingWrites pendingWrites) {
+        this.pendingWrites = pendingWrites;
+    }
+
     public void setBaseRestAPIUrl(String baseRestAPIUrl) {
         this.baseRestAPIUrl = baseRestAPIUrl;
     }
 
     Transaction buildTransaction(String transactionFamily, String txFamVersion, byte[] payload, String outputAddr) {
+        return buildTransaction(transactionFamily, txFamVersion, payload, outputAddr, Collections.emptyList());
+    }
+
+    /**
+     * @param extraInputs namespaces or addresses the TP reads in addition to the namespace of the family
+     */
+    Transaction buildTransaction(String transactionFamily, String txFamVersion, byte[] payload, String outputAddr,
+                                 List<String> extraInputs) {
         // Create Transaction Header
         if (signer == null) {
             throw new IllegalStateException("No signer for the transaction, returning.");
@@ -64,16 +102,21 @@ public class BlockchainHelper {
         }
         String outputs = outputAddr == null ? input : outputAddr;
 
-        TransactionHeader header = TransactionHeader.newBuilder()
+        TransactionHeader.Builder headerBuilder = TransactionHeader.newBuilder()
                 .setSignerPublicKey(signer.getPublicKey().hex())
                 .setFamilyName(transactionFamily)       // Has to be identical in TP
                 .setFamilyVersion(txFamVersion)         // Has to be identical in TP
                 .addOutputs(outputs)
                 .addInputs(input)
+                .addAllInputs(extraInputs)
                 .setPayloadSha512(Utils.hash512(payload))
                 .setBatcherPublicKey(signer.getPublicKey().hex())
-                .setNonce(UUID.randomUUID().toString())
-                .build();
+                .setNonce(UUID.randomUUID().toString());
+        if (outputAddr != null && transactionFamily.equals(CSVSTRINGS_FAMILY)) {
+            // The TP also appends to the group history, the concrete address stays the first output
+            headerBuilder.addOutputs(CSVSTRINGS_NAMESPACE);
+        }
+        TransactionHeader header = headerBuilder.build();
 
         // Create the Transaction
         String signature = signer.sign(header.toByteArray());
@@ -114,36 +157,193 @@ public class BlockchainHelper {
                 .build()
                 .toByteArray();
 
-        return sendBatchListZMQ(batchListBytes);
+        PendingWrites pending = pendingWrites;
+        if (pending == null) {
+            return sendBatchListZMQ(batchListBytes);
+        }
+        // Register before submitting, the commit could be reported before this method returns
+        pending.add(batchSignature, writesOf(transactionList));
+        boolean success = sendBatchListZMQ(batchListBytes);
+        if (success) {
+            pending.submitted(batchSignature);
+        } else {
+            pending.remove(batchSignature);
+        }
+        return success;
+    }
+
+    /**
+     * Values the csvstrings TP will write for the given transactions, computed the same way as in the TP
+     */
+    private Map<String, ByteString> writesOf(List<Transaction> transactionList) {
+        Map<String, ByteString> writes = new HashMap<>();
+        for (Transaction transaction : transactionList) {
+            try {
+                TransactionHeader header = TransactionHeader.parseFrom(transaction.getHeader());
+                if (!CSVSTRINGS_FAMILY.equals(header.getFamilyName())) {
+                    continue;
+                }
+                CSVStringsMessage message = CSVStringsMessage.parse(transaction.getPayload().toStringUtf8());
+                if (message == null || message.hasOption(CSVStringsMessage.OPTION_EPHEMERAL)
+                        || message.hasOption(CSVStringsMessage.OPTION_COMPACT)) {
+                    continue;
+                }
+                String output = header.getOutputs(0);
+                String address = CSVSTRINGS_NAMESPACE.equals(output)
+                        ? message.defaultAddress(CSVSTRINGS_NAMESPACE)
+                        : output;
+                writes.put(address, transaction.getPayload());
+            } catch (InvalidProtocolBufferException e) {
+                e.printStackTrace();
+            }
+        }
+        return writes;
+    }
+
+    /**
+     * Request the status of multiple batches at once
+     *
+     * @param batchIds header signatures of the batches
+     * @return future of the response
+     */
+    CompletableFuture<ClientBatchStatusResponse> getBatchStatuses(Collection<String> batchIds) {
+        ClientBatchStatusRequest req = ClientBatchStatusRequest.newBuilder()
+                .addAllBatchIds(batchIds)
+                .build();
+        return queryConnection.request(Message.MessageType.CLIENT_BATCH_STATUS_REQUEST, req.toByteString())
+                .thenApply(respMessage -> parse(respMessage, ClientBatchStatusResponse.parser()));
     }
 
     String getStateZMQ(String address) {
+        try {
+            return getStateAsync(address).get(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS).toStringUtf8();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "";
+        } catch (ExecutionException | TimeoutException e) {
+            System.out.println("Reading state at " + address + " failed: " + e);
+            return "";
+        }
+    }
+
+    /**
+     * Read the value at an address.
+     *
+     * @param address address
+     * @return future of the value, empty if nothing is stored at the address
+     */
+    CompletableFuture<ByteString> getStateAsync(String address) {
+        PendingWrites pending = pendingWrites;
+        ByteString written = pending == null ? null : pending.get(address);
+        if (written != null) {
+            return CompletableFuture.completedFuture(written);
+        }
+
+        StateCache cache = stateCache;
+        long cacheVersion;
+        if (cache != null) {
+            ByteString cached = cache.get(address);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+            cacheVersion = cache.getVersion();
+        } else {
+            cacheVersion = 0;
+        }
+
         ClientStateGetRequest req = ClientStateGetRequest.newBuilder()
                 .clearStateRoot()
                 .setAddress(address)
                 .build();
         //System.out.println("ClientStateGetRequest: " + req.toString());
 
-        Message message = Message.newBuilder()
-                .setMessageType(Message.MessageType.CLIENT_STATE_GET_REQUEST)
-                .setContent(req.toByteString())
-                .setCorrelationId(EventHandler.CORRELATION_ID)
+        return queryConnection.request(Message.MessageType.CLIENT_STATE_GET_REQUEST, req.toByteString())
+                .thenApply(respMessage -> {
+                    ClientStateGetResponse csgr = parse(respMessage, ClientStateGetResponse.parser());
+                    //System.out.println("csgr: " + csgr.toString());
+                    switch (csgr.getStatus()) {
+                        case OK:
+                        case NO_RESOURCE:
+                            if (cache != null) {
+                                cache.put(address, csgr.getValue(), cacheVersion);
+                            }
+                            return csgr.getValue();
+                        default:
+                            throw new IllegalStateException("Reading state at " + address + " failed with status " + csgr.getStatus());
+                    }
+                });
+    }
+
+    /**
+     * Read multiple addresses at once. All requests are sent right away and are answered independently,
+     * so reading many addresses takes about one round trip.
+     *
+     * @param addresses addresses
+     * @return future of the values by address (empty if nothing is stored), completes when all were read
+     */
+    CompletableFuture<Map<String, ByteString>> getStatesAsync(Collection<String> addresses) {
+        Map<String, CompletableFuture<ByteString>> requests = new LinkedHashMap<>();
+        for (String address : addresses) {
+            requests.computeIfAbsent(address, this::getStateAsync);
+        }
+        return CompletableFuture.allOf(requests.values().toArray(new CompletableFuture[0]))
+                .thenApply(v -> {
+                    Map<String, ByteString> ret = new LinkedHashMap<>();
+                    requests.forEach((address, request) -> ret.put(address, request.join()));
+                    return ret;
+                });
+    }
+
+    /**
+     * Request one page of the state entries under an address prefix.
+     *
+     * @param prefix    namespace or address prefix
+     * @param start     address to start at, empty for the first page
+     * @param limit     maximum number of entries
+     * @param stateRoot state root to read from, empty for the current head
+     * @return future of the response, without entries if nothing is stored under the prefix
+     */
+    CompletableFuture<ClientStateListResponse> listStatePage(String prefix, String start, int limit, String stateRoot) {
+        ClientStateListRequest req = ClientStateListRequest.newBuilder()
+                .setStateRoot(stateRoot)
+                .setAddress(prefix)
+                .setPaging(ClientPagingControls.newBuilder()
+                        .setStart(start)
+                        .setLimit(limit)
+                        .build())
                 .build();
-        //System.out.println("Request Message: " + message.toString());
 
-        submitSocket.send(message.toByteArray());
-        byte[] bResponse = submitSocket.recv();
-        //System.out.println("get state response raw: " + new String(bResponse));
-        Message respMessage;
+        return queryConnection.request(Message.MessageType.CLIENT_STATE_LIST_REQUEST, req.toByteString())
+                .thenApply(respMessage -> {
+                    ClientStateListResponse cslr = parse(respMessage, ClientStateListResponse.parser());
+                    switch (cslr.getStatus()) {
+                        case OK:
+                            return cslr;
+                        case NO_RESOURCE:
+                            return ClientStateListResponse.getDefaultInstance();
+                        default:
+                            throw new IllegalStateException("Listing state of " + prefix + " failed with status " + cslr.getStatus());
+                    }
+                });
+    }
+
+    /**
+     * Iterate over the state entries under an address prefix. Pages are requested as the iteration goes on,
+     * the next page is requested in the background while the current one is consumed.
+     *
+     * @param prefix   namespace or address prefix
+     * @param pageSize entries per request
+     * @return iterator over the entries in address order
+     */
+    Iterator<ClientStateListResponse.Entry> listState(String prefix, int pageSize) {
+        return new StateListIterator(this, prefix, pageSize);
+    }
+
+    private static <T> T parse(Message message, Parser<T> parser) {
         try {
-            respMessage = Message.parseFrom(bResponse);
-            // Extract the ClientStateGetResponse
-            ClientStateGetResponse csgr = ClientStateGetResponse.parseFrom(respMessage.getContent());
-            //System.out.println("csgr: " + csgr.toString());
-            return csgr.getValue().toStringUtf8();
+            return parser.parseFrom(message.getContent());
         } catch (InvalidProtocolBufferException e) {
-            e.printStackTrace();
-            return "";
+            throw new IllegalStateException("Could not parse " + message.getMessageType() + ": " + e.getLocalizedMessage(), e);
         }
     }
 
@@ -152,16 +352,8 @@ public class BlockchainHelper {
             ClientBatchSubmitRequest req = ClientBatchSubmitRequest.parseFrom(body);
             //System.out.println("ClientBatchSubmitRequest: " + req.toString());
 
-            Message message = Message.newBuilder()
-                    .setMessageType(Message.MessageType.CLIENT_BATCH_SUBMIT_REQUEST)
-                    .setContent(req.toByteString())
-                    .setCorrelationId(EventHandler.CORRELATION_ID)
-                    .build();
-
-            submitSocket.send(message.toByteArray());
-
-            byte[] bResponse = submitSocket.recv();
-            Message respMessage = Message.parseFrom(bResponse);
+            Message respMessage = submitConnection.request(Message.MessageType.CLIENT_BATCH_SUBMIT_REQUEST, req.toByteString())
+                    .get(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
             //System.out.println("response message: " + respMessage.toString());
             ClientBatchSubmitResponse cbsResp = ClientBatchSubmitResponse.parseFrom(respMessage.getContent());
             //System.out.println("ClientBatchSubmitResponse parsed: " + cbsResp);
@@ -169,9 +361,12 @@ public class BlockchainHelper {
             boolean success = cbsResp.getStatus() == ClientBatchSubmitResponse.Status.OK;
             System.out.println("Batch submit was " + (success ? "successful" : "not successful"));
             return success;
-        } catch (InvalidProtocolBufferException e) {
+        } catch (InvalidProtocolBufferException | ExecutionException | TimeoutException e) {
             e.printStackTrace();
             return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
@@ -192,8 +387,7 @@ public class BlockchainHelper {
 
         try (InputStream is = http.getInputStream()) {
             BufferedReader br = new BufferedReader(new InputStreamReader(is));
-            Stream<String> lines = br.lines();
-            response = lines.reduce("", (accu, s) -> accu += s);
+            response = br.lines().collect(Collectors.joining());
         } catch (IOException e) {
             e.printStackTrace();
             return false;
@@ -224,8 +418,7 @@ public class BlockchainHelper {
 
         try (InputStream is = http.getInputStream()) {
             BufferedReader br = new BufferedReader(new InputStreamReader(is));
-            Stream<String> lines = br.lines();
-            response = lines.reduce("", (accu, s) -> accu += s);
+            response = br.lines().collect(Collectors.joining());
         } catch (FileNotFoundException e) {
             System.out.println("Address did not match any resource");
             return null;
@@ -241,11 +434,31 @@ public class BlockchainHelper {
     }
 
     public String queryStateAddress(String addr) throws IOException {
+        PendingWrites pending = pendingWrites;
+        ByteString written = pending == null ? null : pending.get(addr);
+        if (written != null) {
+            return Base64.getEncoder().encodeToString(written.toByteArray());
+        }
+
+        StateCache cache = stateCache;
+        long cacheVersion = 0;
+        if (cache != null) {
+            ByteString cached = cache.get(addr);
+            if (cached != null) {
+                return Base64.getEncoder().encodeToString(cached.toByteArray());
+            }
+            cacheVersion = cache.getVersion();
+        }
+
         String resp = sendToRestEndpoint(("/state/" + addr), "GET", null);
         if (resp != null) {
             JSONObject o = new JSONObject(resp);
             try {
-                return o.getString("data");
+                String data = o.getString("data");
+                if (cache != null) {
+                    cache.put(addr, ByteString.copyFrom(Base64.getDecoder().decode(data)), cacheVersion);
+                }
+                return data;
             } catch (JSONException e) {
                 System.out.println("Field 'data' not found in response " + resp);
                 return null;
@@ -255,6 +468,16 @@ public class BlockchainHelper {
         }
     }
 
+    @Override
+    public void close() {
+        PendingWrites pending = pendingWrites;
+        if (pending != null) {
+            pending.close();
+        }
+        queryConnection.close();
+        submitConnection.close();
+    }
+
     public void setRestAPIUrl(String url) {
         baseRestAPIUrl = url;
         if (baseRestAPIUrl.endsWith("/")) {
@@ -0,0 +1,153 @@
+package client;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Payload format of the csvstrings transaction family, used for transactions, state entries and events:
+ * <group>,<encrypted message>[,<options>]
+ * The options are key=value pairs separated by ';'. A message for multiple groups lists the groups separated by '|'.
+ * Neither separator can occur in Base64, so the encrypted parts do not need escaping.
+ */
+public class CSVStringsMessage {
+
+    public static final String FIELD_SEPARATOR = ",";
+    public static final String OPTION_SEPARATOR = ";";
+    public static final String LIST_SEPARATOR = "|";
+
+    /**
+     * Content key of a multi-group message, wrapped with each group key (list in the order of the groups)
+     */
+    public static final String OPTION_WRAPPED_KEYS = "keys";
+    /**
+     * Content key of a multi-group message, wrapped with the key of the group the event is for
+     */
+    public static final String OPTION_WRAPPED_KEY = "key";
+    /**
+     * Address of the state entry that holds the encrypted message
+     */
+    public static final String OPTION_REFERENCE = "ref";
+    /**
+     * The message is only delivered as event and not written to state
+     */
+    public static final String OPTION_EPHEMERAL = "ephemeral";
+    /**
+     * Time in milliseconds since the epoch after which the message may be deleted from state
+     */
+    public static final String OPTION_EXPIRES = "expires";
+    /**
+     * Delete the expired messages of the group, the value is the current time in milliseconds since the epoch
+     */
+    public static final String OPTION_COMPACT = "compact";
+    /**
+     * Hash of the ciphertext in a BlobStore, the message field is empty
+     */
+    public static final String OPTION_BLOB = "blob";
+    /**
+     * Size of the blob in bytes
+     */
+    public static final String OPTION_SIZE = "size";
+
+    private final List<String> groups;
+    private final String message;
+    private final Map<String, String> options = new LinkedHashMap<>();
+
+    public CSVStringsMessage(String group, String message) {
+        this(Collections.singletonList(group), message);
+    }
+
+    public CSVStringsMessage(List<String> groups, String message) {
+        this.groups = new ArrayList<>(groups);
+        this.message = message == null ? "" : message;
+    }
+
+    /**
+     * @param csv payload in the format described above
+     * @return the message or null if it does not have a group and message field
+     */
+    public static CSVStringsMessage parse(String csv) {
+        if (csv == null) {
+            return null;
+        }
+        String[] parts = csv.split(FIELD_SEPARATOR, -1);
+        if (parts.length < 2 || parts[0].isEmpty()) {
+            return null;
+        }
+        CSVStringsMessage ret = new CSVStringsMessage(splitList(parts[0]), parts[1]);
+        if (parts.length > 2 && !parts[2].isEmpty()) {
+            for (String option : parts[2].split(OPTION_SEPARATOR)) {
+                int idx = option.indexOf('=');
+                if (idx < 0) {
+                    ret.options.put(option, "");
+                } else {
+                    ret.options.put(option.substring(0, idx), option.substring(idx + 1));
+                }
+            }
+        }
+        return ret;
+    }
+
+    public static List<String> splitList(String list) {
+        return Arrays.asList(list.split(Pattern.quote(LIST_SEPARATOR), -1));
+    }
+
+    public static String joinList(Collection<String> list) {
+        return String.join(LIST_SEPARATOR, list);
+    }
+
+    /**
+     * @return the group, or the first group of a multi-group message
+     */
+    public String getGroup() {
+        return groups.get(0);
+    }
+
+    public List<String> getGroups() {
+        return Collections.unmodifiableList(groups);
+    }
+
+    public boolean isMultiGroup() {
+        return groups.size() > 1 || hasOption(OPTION_WRAPPED_KEYS);
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Address the message is stored at if the transaction does not name a concrete one.
+     * Derived from the ciphertext, or from the whole payload if the ciphertext is not inline.
+     *
+     * @param namespace namespace of the csvstrings family
+     * @return address
+     */
+    public String defaultAddress(String namespace) {
+        return SawtoothUtils.namespaceHashAddress(namespace, message.isEmpty() ? toString() : message);
+    }
+
+    public boolean hasOption(String key) {
+        return options.containsKey(key);
+    }
+
+    public String getOption(String key) {
+        return options.get(key);
+    }
+
+    public CSVStringsMessage setOption(String key, String value) {
+        options.put(key, value);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(joinList(groups)).append(FIELD_SEPARATOR).append(message);
+        if (!options.isEmpty()) {
+            sb.append(FIELD_SEPARATOR);
+            StringJoiner joiner = new StringJoiner(OPTION_SEPARATOR);
+            options.forEach((k, v) -> joiner.add(k + "=" + v));
+            sb.append(joiner.toString());
+        }
+        return sb.toString();
+    }
+}
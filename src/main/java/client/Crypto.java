@@ -28,13 +28,13 @@ public class Crypto {
     private char[] keyStorePass;
     private String pathToKeyStore;
     private HyperZMQ hyperZMQ;
-    private Map<String, SecretKey> groupKeys = new HashMap<>();
-    private List<Keypair> curveKeys = new ArrayList<>();
+    private final KeyRegistry keys;
     private SecretKey dataEncryptionKey;
     private Secp256k1Context context;
-    private PrivateKey privateKey;
-    private Signer signer;
+    private volatile PrivateKey privateKey;
+    private volatile Signer signer;
     private Storage storage;
+    private final KeystorePersister persister;
 
     /**
      * Create a instance which loads the KeyStore and DataFile from the given path (which should include <filename>.jks. and <filename>.dat)
@@ -42,19 +42,26 @@ public class Crypto {
      * @param keystorePath path the keystore
      * @param password     password of the keystore
      * @param createNew    whether to create a new keystore
+     * @param lazyLoad     whether group keys are unwrapped on first use instead of when loading the keystore
      */
-    Crypto(HyperZMQ hyperZMQ, String keystorePath, char[] password, String dataFilePath, boolean createNew) {
+    Crypto(HyperZMQ hyperZMQ, String keystorePath, char[] password, String dataFilePath, boolean createNew, boolean lazyLoad) {
         this.keyStorePass = password;
         this.pathToKeyStore = keystorePath;
         this.hyperZMQ = hyperZMQ;
         this.storage = new Storage(pathToKeyStore, keyStorePass, dataFilePath);
+        this.keys = new KeyRegistry(storage::loadKey);
+        this.persister = new KeystorePersister(storage, this::snapshot);
         if (createNew) {
             createNewCryptoMaterial();
         } else {
-            load();
+            load(lazyLoad);
         }
     }
 
+    Crypto(HyperZMQ hyperZMQ, String keystorePath, char[] password, String dataFilePath, boolean createNew) {
+        this(hyperZMQ, keystorePath, password, dataFilePath, createNew, false);
+    }
+
     /**
      * Create a instance which loads the KeyStore and DataFile from the default path.
      *
@@ -76,6 +83,8 @@ public class Crypto {
 
         dataEncryptionKey = generateSecretKey();
         save();
+        // The new store should exist on disk right away
+        flush();
     }
 
     private static byte[] generateRandomIV() {
@@ -85,12 +94,36 @@ public class Crypto {
         return iv;
     }
 
-    private SecretKey generateSecretKey() {
+    static SecretKey generateSecretKey() {
         final byte[] raw = new byte[KEY_LENGTH];
         new SecureRandom().nextBytes(raw);
         return new SecretKeySpec(raw, "AES");
     }
 
+    /**
+     * Encrypt a (content) key with the key of a group
+     *
+     * @param key   key to wrap
+     * @param group group whose key is used
+     * @return wrapped key in Base64
+     */
+    String wrapKey(SecretKey key, String group) throws GeneralSecurityException, IllegalStateException {
+        return encrypt(Base64.getEncoder().encodeToString(key.getEncoded()), group);
+    }
+
+    /**
+     * @param wrappedKey key created by wrapKey
+     * @param group      group whose key was used to wrap
+     * @return the unwrapped key
+     */
+    SecretKey unwrapKey(String wrappedKey, String group) throws GeneralSecurityException, IllegalStateException {
+        byte[] keyBytes = Base64.getDecoder().decode(decrypt(wrappedKey, group));
+        if (keyBytes.length != KEY_LENGTH) {
+            throw new GeneralSecurityException("Unwrapped key has invalid size " + keyBytes.length);
+        }
+        return new SecretKeySpec(keyBytes, "AES");
+    }
+
     public void setPrivateKey(PrivateKey privateKey) {
         this.privateKey = privateKey;
         this.signer = new Signer(new Secp256k1Context(), privateKey);
@@ -101,7 +134,7 @@ public class Crypto {
     }
 
     String encrypt(String plainText, String group) throws GeneralSecurityException, IllegalStateException {
-        SecretKey key = groupKeys.get(group);
+        SecretKey key = keys.getGroupKey(group);
         if (key == null) throw new IllegalStateException("No key found for group=" + group);
         return encrypt(plainText, key);
     }
@@ -132,7 +165,7 @@ public class Crypto {
     }
 
     String decrypt(String encryptedText, String group) throws GeneralSecurityException, IllegalStateException {
-        SecretKey key = groupKeys.get(group);
+        SecretKey key = keys.getGroupKey(group);
         if (key == null) throw new IllegalStateException("No key found for group=" + group);
         return decrypt(encryptedText, key);
     }
@@ -151,25 +184,48 @@ public class Crypto {
     }
 
     List<String> getGroupNames() {
-        return new ArrayList<>(groupKeys.keySet());
+        return keys.getGroupNames();
     }
 
     boolean hasKeyForGroup(String groupName) {
-        return groupKeys.containsKey(groupName);
+        return keys.hasGroup(groupName);
     }
 
     String getKeyForGroup(String groupName) {
-        if (groupKeys.containsKey(groupName)) {
-            return new String(Base64.getEncoder().encode(groupKeys.get(groupName).getEncoded()), UTF_8);
+        SecretKey key = keys.getGroupKey(groupName);
+        if (key != null) {
+            return new String(Base64.getEncoder().encode(key.getEncoded()), UTF_8);
         }
         return null;
     }
 
+    /**
+     * Unwrap all keys that were not used yet in a background thread,
+     * so that the first message of a group does not pay for it.
+     */
+    void warmUpKeys() {
+        Thread t = new Thread(this::loadAllKeys, "KeyWarmUp");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return names of the groups whose keys were not unwrapped yet
+     */
+    List<String> getUnloadedGroupNames() {
+        return keys.getUnloadedGroupNames();
+    }
+
+    private void loadAllKeys() {
+        for (String group : keys.getUnloadedGroupNames()) {
+            keys.getGroupKey(group);
+        }
+    }
+
     void createGroup(String name) throws IllegalArgumentException {
-        if (groupKeys.containsKey(name)) {
+        if (!keys.putGroupKeyIfAbsent(name, generateSecretKey())) {
             throw new IllegalArgumentException("Name already in use");
         }
-        groupKeys.put(name, generateSecretKey());
         save();
         //log.info("created group " + name + " with key (b64) " + Base64.getEncoder().encodeToString(_keys.get(name).getEncoded()));
     }
@@ -179,49 +235,110 @@ public class Crypto {
         if (keyBytes.length != KEY_LENGTH) {
             throw new IllegalArgumentException("Key size is invalid! Expected 32, got " + keyBytes.length);
         }
-        groupKeys.put(groupName, new SecretKeySpec(Base64.getDecoder().decode(key), "AES"));
+        keys.putGroupKey(groupName, new SecretKeySpec(keyBytes, "AES"));
         save();
         //log.info("Added group " + groupName + " with key (b64) " + Base64.getEncoder().encodeToString(_keys.get(groupName).getEncoded()));
     }
 
+    /**
+     * Add multiple groups, all keys are validated before any is added.
+     * The keystore is written once for all of them.
+     *
+     * @param groupKeys map of group name to key in Base64
+     * @throws IllegalArgumentException if any of the keys is invalid
+     */
+    void addGroups(Map<String, String> groupKeys) {
+        Map<String, SecretKey> decoded = new HashMap<>();
+        groupKeys.forEach((groupName, key) -> {
+            byte[] keyBytes;
+            try {
+                keyBytes = Base64.getDecoder().decode(key);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Key of group " + groupName + " is not valid Base64");
+            }
+            if (keyBytes.length != KEY_LENGTH) {
+                throw new IllegalArgumentException("Key size of group " + groupName + " is invalid! Expected 32, got " + keyBytes.length);
+            }
+            decoded.put(groupName, new SecretKeySpec(keyBytes, "AES"));
+        });
+        decoded.forEach(keys::putGroupKey);
+        save();
+    }
+
     void removeGroup(String groupName) {
-        groupKeys.remove(groupName);
+        keys.removeGroup(groupName);
     }
 
+    /**
+     * Mark the key material as changed. It is written to disk in the background, bursts of changes are
+     * coalesced into a single write. Use flush() to wait for the write.
+     */
     private void save() {
+        persister.markDirty();
+    }
+
+    /**
+     * Blocks until all changes made so far are written to the keystore and data file.
+     */
+    void flush() {
+        persister.flush();
+    }
+
+    /**
+     * Writes outstanding changes and stops the background writer.
+     */
+    void close() {
+        persister.close();
+    }
+
+    /**
+     * Copy of the current state for the persister, so that writing does not block further mutations
+     *
+     * @return data to save
+     */
+    private Data snapshot() {
+        // Keys that are still wrapped are carried over from the loaded keystore as they are, without unwrapping.
+        // Listed before copying the unwrapped keys, so a key unwrapped in between ends up in both rather than neither
+        List<String> wrapped = keys.getUnloadedGroupNames();
+
         // Prepare the other 'non-key' data
         Map<String, String> dataMap = new HashMap<>();
         dataMap.put(SAWTOOTHER_SIGNER_KEY, privateKey.hex());
         // Since the curve keys have the alias built in, the maps key is not needed
-        for (int i = 0; i < curveKeys.size(); i++) {
-            dataMap.put(String.valueOf(i), curveKeys.get(i).toString());
+        int i = 0;
+        for (Keypair kp : keys.getKeypairs()) {
+            dataMap.put(String.valueOf(i++), kp.toString());
         }
 
-        //
-        groupKeys.put(DATA_ENCRYPTION_KEY_ALIAS, dataEncryptionKey);
-        storage.saveData(new Data(groupKeys, dataMap));
+        Map<String, SecretKey> keyMap = keys.copyGroupKeys();
+        keyMap.put(DATA_ENCRYPTION_KEY_ALIAS, dataEncryptionKey);
+        return new Data(keyMap, dataMap, wrapped);
     }
 
-    private void load() {
-        Data data = storage.loadData();
-        dataEncryptionKey = data.keys.remove(DATA_ENCRYPTION_KEY_ALIAS);
+    private void load(boolean lazy) {
+        Data data = storage.loadData(lazy);
+        dataEncryptionKey = storage.getDataEncryptionKey();
 
-        groupKeys = data.keys;
+        data.keys.forEach((group, key) -> {
+            if (key == null) {
+                keys.addUnloadedGroup(group);
+            } else {
+                keys.putGroupKey(group, key);
+            }
+        });
         context = new Secp256k1Context();
-        PrivateKey key = new Secp256k1PrivateKey(Utils.HEX.decode(data.getSigningKeyHex()));
-        signer = new Signer(context, key);
+        privateKey = new Secp256k1PrivateKey(Utils.HEX.decode(data.getSigningKeyHex()));
+        signer = new Signer(context, privateKey);
         data.data.remove(SAWTOOTHER_SIGNER_KEY);
         // restore the curve keys, the data map does not contain the data encryption key anymore
-        ArrayList<Keypair> tmp = new ArrayList<>();
         data.data.forEach((k, v) -> {
             try {
-                tmp.add(new Gson().fromJson(v, Keypair.class));
+                keys.putKeypair(new Gson().fromJson(v, Keypair.class));
             } catch (JsonSyntaxException e) {
                 // TODO
             }
 
         });
-        curveKeys = tmp;
     }
 
     Signer getSigner() {
@@ -229,19 +346,16 @@ public class Crypto {
     }
 
     public void addKeypair(Keypair kp) {
-        curveKeys.add(kp);
+        keys.putKeypair(kp);
         save();
     }
 
     public Keypair getKeypair(String alias) {
-        return curveKeys.stream().
-                filter(key -> alias.equals(key.alias)).
-                findAny().
-                orElse(null);
+        return keys.getKeypair(alias);
     }
 
     public boolean removeKeypair(String alias) {
-        boolean b = curveKeys.removeIf(kp -> alias.equals(kp.alias));
+        boolean b = keys.removeKeypair(alias);
         save();
         return b;
     }
@@ -1,16 +1,25 @@
 package client;
 
 import javax.crypto.SecretKey;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 
 class Data {
 
     Map<String, SecretKey> keys;
     Map<String, String> data;
+    // Aliases of keys that are still wrapped in the lazily loaded keystore and not part of keys
+    Collection<String> wrappedAliases;
 
     Data(Map<String, SecretKey> keys, Map<String, String> data) {
+        this(keys, data, Collections.emptyList());
+    }
+
+    Data(Map<String, SecretKey> keys, Map<String, String> data, Collection<String> wrappedAliases) {
         this.keys = keys;
         this.data = data;
+        this.wrappedAliases = wrappedAliases;
     }
 
     String getSigningKeyHex() {
@@ -12,11 +12,14 @@ import java.util.concurrent.atomic.AtomicBoolean;
 class EventHandler implements AutoCloseable {
     private final HyperZMQ hyperzmq;
     static final String CORRELATION_ID = "123";
+    static final String STATE_DELTA_EVENT = "sawtooth/state-delta";
 
     private String validatorURL = "";
     private final ZMQ.Socket socket;
     private final AtomicBoolean runListenerLoop = new AtomicBoolean(true);
     private final List<Message> subscriptionQueue = new ArrayList<>(); // Used by two threads
+    private final Map<String, EventSubscription> subscriptions = new LinkedHashMap<>(); // key is the event type
+    private final Set<String> stateDeltaNamespaces = new LinkedHashSet<>();
     private int receiveTimeoutMS = 300;
     private final ZContext context;
 
@@ -58,6 +61,11 @@ class EventHandler implements AutoCloseable {
                                 case CLIENT_EVENTS: {
                                     EventList list = EventList.parseFrom(messageReceived.getContent());
                                     for (Event e : list.getEventsList()) {
+                                        if (STATE_DELTA_EVENT.equals(e.getEventType())) {
+                                            hyperzmq.stateDeltaReceived(StateChangeList.parseFrom(e.getData()));
+                                            continue;
+                                        }
+
                                         String received = e.toString();
                                         print("Received Event: " + received);
 
@@ -65,26 +73,17 @@ class EventHandler implements AutoCloseable {
                                         Event.Attribute attr = e.getAttributes(0);
                                         if (BlockchainHelper.CSVSTRINGS_NAMESPACE.equals(attr.getValue())) {
                                             hyperzmq.handleJoinGroupRequest(e.getData().toStringUtf8());
-                                            return;
+                                            continue;
                                         }
 
-                                        String fullMessage = received.substring(received.indexOf("data"));
-                                        //print("fullMessage: " + fullMessage);
-
-                                        String csvMessage = fullMessage.substring(7, fullMessage.length() - 2); //TODO
-                                        //print("csvMessage: " + csvMessage);
-
-                                        String[] parts = csvMessage.split(",");
-                                        if (parts.length < 2) {
+                                        String csvMessage = e.getData().toStringUtf8();
+                                        CSVStringsMessage message = CSVStringsMessage.parse(csvMessage);
+                                        if (message == null) {
                                             print("Malformed event payload: " + csvMessage);
-                                            return;
+                                            continue;
                                         }
-                                        String group = parts[0];
-                                        String encMessage = parts[1];
-                                        //print("Group: " + group);
-                                        //print("Encrypted Message: " + encMessage);
 
-                                        hyperzmq.newEventReceived(group, encMessage);
+                                        hyperzmq.newEventReceived(message);
                                     }
                                     break;
                                 }
@@ -94,6 +93,8 @@ class EventHandler implements AutoCloseable {
                                         ClientEventsSubscribeResponse cesr = ClientEventsSubscribeResponse.parseFrom(messageReceived.getContent());
                                         print("Subscription was " + (cesr.getStatus() == ClientEventsSubscribeResponse.Status.OK ?
                                                 "successful" : "unsuccessful"));
+                                        // State changes between the previous and this subscription could have been missed
+                                        hyperzmq.eventSubscriptionChanged();
                                     } catch (InvalidProtocolBufferException e) {
                                         e.printStackTrace();
                                     }
@@ -117,23 +118,63 @@ class EventHandler implements AutoCloseable {
     }
 
     public void subscribeToGroup(String groupName) {
+        subscribeToGroups(Collections.singletonList(groupName));
+    }
+
+    /**
+     * Subscribe to the events of multiple groups with a single request
+     *
+     * @param groupNames groups to subscribe to
+     */
+    public void subscribeToGroups(Collection<String> groupNames) {
         EventFilter eventFilter = EventFilter.newBuilder()
                 .setFilterType(EventFilter.FilterType.REGEX_ANY)
                 .setKey("address")
                 .setMatchString(BlockchainHelper.CSVSTRINGS_NAMESPACE + "*")
                 .build();
-        queueNewSubscription(groupName, eventFilter);
+        synchronized (subscriptions) {
+            for (String groupName : groupNames) {
+                subscriptions.put(groupName, EventSubscription.newBuilder()
+                        .addFilters(eventFilter)
+                        .setEventType(groupName)
+                        .build());
+            }
+            queueSubscriptionRequest();
+        }
     }
 
-    private void queueNewSubscription(String eventName, EventFilter eventFilter) {
-        // Build a subscription message ready to be sent which will be queued
-        EventSubscription eventSubscription = EventSubscription.newBuilder()
-                .addFilters(eventFilter)
-                .setEventType(eventName)
-                .build();
+    /**
+     * Subscribe to the state changes of committed blocks for addresses in the given namespaces,
+     * in addition to the namespaces subscribed to before
+     *
+     * @param namespaces namespaces (address prefixes)
+     */
+    public void subscribeToStateDeltas(Collection<String> namespaces) {
+        synchronized (subscriptions) {
+            if (!stateDeltaNamespaces.addAll(namespaces)) {
+                return;
+            }
+            EventFilter eventFilter = EventFilter.newBuilder()
+                    .setFilterType(EventFilter.FilterType.REGEX_ANY)
+                    .setKey("address")
+                    .setMatchString("^(" + String.join("|", stateDeltaNamespaces) + ").*")
+                    .build();
+            subscriptions.put(STATE_DELTA_EVENT, EventSubscription.newBuilder()
+                    .addFilters(eventFilter)
+                    .setEventType(STATE_DELTA_EVENT)
+                    .build());
+            queueSubscriptionRequest();
+        }
+    }
 
+    /**
+     * The validator keeps one set of subscriptions per connection, so every request carries all subscriptions.
+     * A request that is still queued is replaced, because the new one includes everything it contained.
+     */
+    private void queueSubscriptionRequest() {
+        // Build a subscription message ready to be sent which will be queued
         ClientEventsSubscribeRequest request = ClientEventsSubscribeRequest.newBuilder()
-                .addSubscriptions(eventSubscription)
+                .addAllSubscriptions(subscriptions.values())
                 .build();
 
         Message message = Message.newBuilder()
@@ -143,6 +184,7 @@ class EventHandler implements AutoCloseable {
                 .build();
 
         synchronized (subscriptionQueue) {
+            subscriptionQueue.removeIf(m -> m.getMessageType() == MessageType.CLIENT_EVENTS_SUBSCRIBE_REQUEST);
             subscriptionQueue.add(message);
         }
     }
@@ -0,0 +1,49 @@
+package client;
+
+import java.io.IOException;
+import java.nio.file.*;
+
+/**
+ * Blob store in a directory, each blob is a file named after its hash
+ */
+public class FileBlobStore implements BlobStore {
+
+    private final Path directory;
+
+    public FileBlobStore(String directory) throws IOException {
+        this.directory = Files.createDirectories(Paths.get(directory));
+    }
+
+    @Override
+    public String put(byte[] data) throws IOException {
+        String hash = SawtoothUtils.hash(data);
+        Path target = directory.resolve(hash);
+        if (Files.exists(target)) {
+            return hash;
+        }
+        // Write to a temporary file first so that readers never see a partial blob
+        Path tmp = Files.createTempFile(directory, hash, ".tmp");
+        try {
+            Files.write(tmp, data);
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // Stored concurrently with the same content
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return hash;
+    }
+
+    @Override
+    public byte[] get(String hash) throws IOException {
+        if (!SawtoothUtils.isHash(hash)) {
+            // The hash comes from a message, it must not be used to read other files
+            throw new IOException("Not a SHA-512 hash: " + hash);
+        }
+        try {
+            return Files.readAllBytes(directory.resolve(hash));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Layout of the per-group message history in the csvstrings namespace, shared by the TP that appends to it
+ * and the client that reads it.
+ * <p>
+ * Every message of a group gets a sequence number starting at 0. The addresses of the messages are stored in
+ * pages of PAGE_SIZE entries. Full pages are sealed at their own address and are only changed by compaction,
+ * the page that is being filled is kept in the head entry together with the number of messages:
+ * <pre>
+ * head:       &lt;count&gt;,&lt;address&gt;|&lt;address&gt;|...
+ * page n:     &lt;address&gt;|&lt;address&gt;|... (PAGE_SIZE entries)
+ * </pre>
+ * Reading the last N messages therefore needs the head and at most N / PAGE_SIZE + 1 pages.
+ * <p>
+ * An entry of a message that expires is stored as &lt;address&gt;@&lt;expiry&gt;. Compaction deletes expired messages
+ * and replaces their entries with COMPACTED, which keeps the sequence numbers of the others. The head counts the sealed pages
+ * from the start that have no expiring entries left in a third field, so compaction does not scan them again.
+ */
+public final class GroupHistory {
+
+    public static final int PAGE_SIZE = 64;
+    private static final String PREFIX = "history:";
+    private static final char EXPIRY_SEPARATOR = '@';
+    /**
+     * Entry of a message that was deleted by compaction
+     */
+    public static final String COMPACTED = "-";
+
+    private final long count;
+    private final List<String> openPage;
+    private final long compactedPages;
+
+    public GroupHistory(long count, List<String> openPage) {
+        this(count, openPage, 0);
+    }
+
+    public GroupHistory(long count, List<String> openPage, long compactedPages) {
+        this.count = count;
+        this.openPage = Collections.unmodifiableList(new ArrayList<>(openPage));
+        this.compactedPages = compactedPages;
+    }
+
+    /**
+     * @param address address of the message
+     * @param expiry  expiry in milliseconds since the epoch or null
+     * @return history entry
+     */
+    public static String entry(String address, Long expiry) {
+        return expiry == null ? address : address + EXPIRY_SEPARATOR + expiry;
+    }
+
+    /**
+     * @param entry history entry
+     * @return address of the message
+     */
+    public static String addressOf(String entry) {
+        int idx = entry.indexOf(EXPIRY_SEPARATOR);
+        return idx < 0 ? entry : entry.substring(0, idx);
+    }
+
+    /**
+     * @param entry history entry
+     * @return expiry in milliseconds since the epoch, Long.MAX_VALUE if the message does not expire
+     */
+    public static long expiryOf(String entry) {
+        int idx = entry.indexOf(EXPIRY_SEPARATOR);
+        if (idx < 0) {
+            return Long.MAX_VALUE;
+        }
+        try {
+            return Long.parseLong(entry.substring(idx + 1));
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    public static boolean isExpired(String entry, long now) {
+        return expiryOf(entry) <= now;
+    }
+
+    public static boolean isCompacted(String entry) {
+        return COMPACTED.equals(entry);
+    }
+
+    public static String headAddress(String namespace, String group) {
+        return SawtoothUtils.namespaceHashAddress(namespace, PREFIX + group);
+    }
+
+    public static String pageAddress(String namespace, String group, long page) {
+        return SawtoothUtils.namespaceHashAddress(namespace, PREFIX + group + ":" + page);
+    }
+
+    /**
+     * @param head value of the head entry, empty if the group has no history yet
+     * @return history head
+     * @throws IllegalArgumentException if the value is malformed
+     */
+    public static GroupHistory parse(String head) {
+        if (head == null || head.isEmpty()) {
+            return new GroupHistory(0, Collections.emptyList());
+        }
+        String[] parts = head.split(CSVStringsMessage.FIELD_SEPARATOR, -1);
+        try {
+            long count = Long.parseLong(parts[0]);
+            List<String> openPage = parts.length > 1 ? parsePage(parts[1]) : Collections.emptyList();
+            if (openPage.size() != count % PAGE_SIZE) {
+                throw new IllegalArgumentException("History head has " + openPage.size() + " entries, expected "
+                        + (count % PAGE_SIZE));
+            }
+            long compactedPages = parts.length > 2 ? Long.parseLong(parts[2]) : 0;
+            return new GroupHistory(count, openPage, compactedPages);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed history head: " + head);
+        }
+    }
+
+    public static List<String> parsePage(String page) {
+        if (page == null || page.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return CSVStringsMessage.splitList(page);
+    }
+
+    /**
+     * @param entry entry of the new message
+     * @return history with the message appended, the open page is empty if it was sealed by this message
+     */
+    public GroupHistory append(String entry) {
+        List<String> page = new ArrayList<>(openPage);
+        page.add(entry);
+        if (page.size() == PAGE_SIZE) {
+            page.clear();
+        }
+        return new GroupHistory(count + 1, page, compactedPages);
+    }
+
+    /**
+     * @param openPage       open page with the deleted entries replaced by COMPACTED
+     * @param compactedPages number of sealed pages from the start without expiring entries
+     * @return history with the given compaction state
+     */
+    public GroupHistory compacted(List<String> openPage, long compactedPages) {
+        return new GroupHistory(count, openPage, compactedPages);
+    }
+
+    /**
+     * @return number of messages in the history
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return number of sealed pages, which is also the number of the open page
+     */
+    public long getSealedPages() {
+        return count / PAGE_SIZE;
+    }
+
+    public List<String> getOpenPage() {
+        return openPage;
+    }
+
+    public long getCompactedPages() {
+        return compactedPages;
+    }
+
+    @Override
+    public String toString() {
+        String ret = count + CSVStringsMessage.FIELD_SEPARATOR + CSVStringsMessage.joinList(openPage);
+        return compactedPages == 0 ? ret : ret + CSVStringsMessage.FIELD_SEPARATOR + compactedPages;
+    }
+}
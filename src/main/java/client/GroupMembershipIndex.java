@@ -0,0 +1,145 @@
+package client;
+
+import com.google.protobuf.ByteString;
+import sawtooth.sdk.protobuf.StateChange;
+import sawtooth.sdk.protobuf.StateChangeList;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * In-memory index of the members of groups, keyed by group name.
+ * A group is read from state once when it is first asked for and is then kept current with the
+ * state changes of committed blocks for the group entries in the KeyExchangeReceipt namespace.
+ */
+class GroupMembershipIndex {
+
+    /**
+     * Immutable snapshot of the members of a group, in the order they joined
+     */
+    static final class GroupMembers {
+        static final GroupMembers EMPTY = new GroupMembers(Collections.emptyList());
+
+        private final List<String> ordered;
+        private final Set<String> lookup;
+
+        private GroupMembers(List<String> members) {
+            this.ordered = Collections.unmodifiableList(members);
+            this.lookup = Collections.unmodifiableSet(new HashSet<>(members));
+        }
+
+        /**
+         * @param entry comma separated public keys as written by the KeyExchangeReceipt TP
+         * @return members
+         */
+        static GroupMembers parse(String entry) {
+            if (entry == null || entry.isEmpty()) {
+                return EMPTY;
+            }
+            List<String> members = new ArrayList<>();
+            for (String member : entry.split(",")) {
+                if (!member.isEmpty()) {
+                    members.add(member);
+                }
+            }
+            return new GroupMembers(members);
+        }
+
+        List<String> asList() {
+            return ordered;
+        }
+
+        boolean contains(String publicKey) {
+            return lookup.contains(publicKey);
+        }
+
+        boolean isEmpty() {
+            return ordered.isEmpty();
+        }
+    }
+
+    private final Map<String, GroupMembers> members = new ConcurrentHashMap<>(); // key is the group name
+    private final Map<String, String> groupsByAddress = new ConcurrentHashMap<>();
+    private final Function<String, String> addressOfGroup;
+    private final Function<String, CompletableFuture<ByteString>> stateReader;
+    // Incremented by clear, groups read before are not indexed afterwards
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @param addressOfGroup maps a group name to the address of its member entry
+     * @param stateReader    reads the value of an address from state
+     */
+    GroupMembershipIndex(Function<String, String> addressOfGroup,
+                         Function<String, CompletableFuture<ByteString>> stateReader) {
+        this.addressOfGroup = addressOfGroup;
+        this.stateReader = stateReader;
+    }
+
+    /**
+     * @param groupName group
+     * @return members of the group, read from state if the group is not indexed yet
+     * @throws IllegalStateException if the group is not indexed and reading it from state failed
+     */
+    GroupMembers getMembers(String groupName) {
+        GroupMembers current = members.get(groupName);
+        if (current != null) {
+            return current;
+        }
+        // Register the address first so that no change is missed while the entry is read
+        String address = addressOfGroup.apply(groupName);
+        groupsByAddress.put(address, groupName);
+        long generationBeforeRead = generation.get();
+        ByteString value;
+        try {
+            value = stateReader.apply(address).get(BlockchainHelper.REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading the members of group " + groupName);
+        } catch (ExecutionException | TimeoutException e) {
+            // Not indexed, so the next call reads the group again
+            throw new IllegalStateException("Reading the members of group " + groupName + " failed: " + e);
+        }
+
+        GroupMembers read = GroupMembers.parse(value.toStringUtf8());
+        if (generation.get() != generationBeforeRead) {
+            return read;
+        }
+        // A change applied while reading is newer than the value read
+        current = members.putIfAbsent(groupName, read);
+        return current == null ? read : current;
+    }
+
+    /**
+     * @throws IllegalStateException see {@link #getMembers(String)}
+     */
+    boolean isMember(String groupName, String publicKey) {
+        return getMembers(groupName).contains(publicKey);
+    }
+
+    /**
+     * Apply the changes of a committed block to the indexed groups, other addresses are ignored.
+     *
+     * @param changes changes from a sawtooth/state-delta event
+     */
+    void apply(StateChangeList changes) {
+        for (StateChange change : changes.getStateChangesList()) {
+            String groupName = groupsByAddress.get(change.getAddress());
+            if (groupName == null) {
+                continue;
+            }
+            members.put(groupName, change.getType() == StateChange.Type.SET
+                    ? GroupMembers.parse(change.getValue().toStringUtf8())
+                    : GroupMembers.EMPTY);
+        }
+    }
+
+    /**
+     * Drop all groups, e.g. if state changes could have been missed. They are read again when asked for.
+     */
+    void clear() {
+        generation.incrementAndGet();
+        members.clear();
+    }
+}
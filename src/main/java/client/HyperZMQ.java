@@ -2,6 +2,7 @@ package client;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
+import com.google.protobuf.ByteString;
 import contracts.Contract;
 import contracts.ContractProcessor;
 import contracts.ContractReceipt;
@@ -14,12 +15,15 @@ import keyexchange.ReceiptType;
 import org.bitcoinj.core.Utils;
 import org.zeromq.ZContext;
 import org.zeromq.ZMQ;
+import sawtooth.sdk.protobuf.ClientStateListResponse;
+import sawtooth.sdk.protobuf.StateChangeList;
 import sawtooth.sdk.protobuf.Transaction;
 import sawtooth.sdk.signing.*;
 import voting.VotingProcess;
 import zmq.io.mechanism.curve.Curve;
 
 import javax.annotation.Nullable;
+import javax.crypto.SecretKey;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -28,24 +32,56 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static client.Envelope.*;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class HyperZMQ implements AutoCloseable {
 
+    private static final int DEFAULT_STATE_LIST_PAGE_SIZE = 100;
+    private static final int BLOB_FETCH_THREADS = 4;
     private final EventHandler eventHandler;
     private final Crypto crypto;
     private final String clientID;
-    private List<ContractProcessor> contractProcessors = new ArrayList<>();
-    private Map<String, List<GroupCallback>> textmessageCallbacks = new HashMap<>();
-    private Map<String, ContractProcessingCallback> contractCallbacks = new HashMap<>(); // key is the contractID
+    // Callbacks are registered by user threads and invoked by the delivery thread
+    private final List<ContractProcessor> contractProcessors = new CopyOnWriteArrayList<>();
+    private final Map<String, CopyOnWriteArrayList<GroupCallback>> textmessageCallbacks = new ConcurrentHashMap<>();
+    private final Map<String, ContractProcessingCallback> contractCallbacks = new ConcurrentHashMap<>(); // key is the contractID
+    // Delivers the events one after another in the order they were received, off the event thread
+    private final ExecutorService deliveryExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "HyperZMQ-delivery");
+        t.setDaemon(true);
+        return t;
+    });
+    // Reads blobs while earlier events are still being delivered
+    private final ExecutorService blobFetchExecutor = Executors.newFixedThreadPool(BLOB_FETCH_THREADS, r -> {
+        Thread t = new Thread(r, "HyperZMQ-blob-fetch");
+        t.setDaemon(true);
+        return t;
+    });
     private BlockchainHelper blockchainHelper;
     private ZContext zContext = new ZContext();
+    private volatile StateCache stateCache = null;
+    private volatile PendingWrites pendingWrites = null;
+    private volatile BlobStore blobStore = null;
+    private volatile int blobThreshold = Integer.MAX_VALUE;
+    private volatile boolean useRestAPIForQueries = false;
+    private final GroupMembershipIndex membershipIndex = new GroupMembershipIndex(
+            group -> SawtoothUtils.namespaceHashAddress(BlockchainHelper.KEY_EXCHANGE_RECEIPT_NAMESPACE, group),
+            address -> blockchainHelper.getStateAsync(address));
 
     private VotingProcess votingProcess = null;
 
@@ -53,7 +89,7 @@ public class HyperZMQ implements AutoCloseable {
     // also invokes the group callback with ContractReceipt additionally to the ReceiptCallback
     // (i.e. receipts for other clients will invoke group callbacks if this is set)
     // by default, the contract processing is done without invoking any callback
-    private boolean passthroughAll = false;
+    private volatile boolean passthroughAll = false;
 
     /**
      * @param id               id
@@ -63,11 +99,27 @@ public class HyperZMQ implements AutoCloseable {
      *                         and encryption key will be created
      */
     public HyperZMQ(String id, String pathToKeyStore, String keystorePassword, String dataFilePath, boolean createNewStore) {
+        this(id, pathToKeyStore, keystorePassword, dataFilePath, createNewStore, false);
+    }
+
+    /**
+     * @param id               id
+     * @param pathToKeyStore   path to a keystore file including .jks
+     * @param keystorePassword password for the keystore
+     * @param createNewStore   whether a new keystore should be created, if true a new signer (=blockchain identity)
+     *                         and encryption key will be created
+     * @param lazyKeyLoading   if true, only the aliases are read from an existing keystore and the group keys are
+     *                         unwrapped when they are first used (see warmUpGroupKeys)
+     */
+    public HyperZMQ(String id, String pathToKeyStore, String keystorePassword, String dataFilePath, boolean createNewStore,
+                    boolean lazyKeyLoading) {
         clientID = id;
         //_crypto = new Crypto(this, pathToKeyStore, keystorePassword.toCharArray(), createNewStore);
-        crypto = new Crypto(this, pathToKeyStore, keystorePassword.toCharArray(), dataFilePath, createNewStore);
+        crypto = new Crypto(this, pathToKeyStore, keystorePassword.toCharArray(), dataFilePath, createNewStore, lazyKeyLoading);
         eventHandler = new EventHandler(this);
         blockchainHelper = new BlockchainHelper(this, crypto.getSigner());
+        // Keeps the group membership index current
+        eventHandler.subscribeToStateDeltas(Collections.singletonList(BlockchainHelper.KEY_EXCHANGE_RECEIPT_NAMESPACE));
     }
 
     /**
@@ -78,6 +130,8 @@ public class HyperZMQ implements AutoCloseable {
         crypto = new Crypto(this, keystorePassword.toCharArray(), createNewStore);
         eventHandler = new EventHandler(this);
         blockchainHelper = new BlockchainHelper(this, crypto.getSigner());
+        // Keeps the group membership index current
+        eventHandler.subscribeToStateDeltas(Collections.singletonList(BlockchainHelper.KEY_EXCHANGE_RECEIPT_NAMESPACE));
     }
 
     /**
@@ -216,41 +270,141 @@ public class HyperZMQ implements AutoCloseable {
      */
     public Envelope queryStateAddress(String addr) {
         try {
-            // The data is stored in Base64, decode it first
-            String raw = blockchainHelper.queryStateAddress(addr);
-            if (raw == null) {
-                return null;
-            }
-            byte[] bytes = Base64.getDecoder().decode(raw);
-            String data = new String(bytes, UTF_8);
+            return queryStateAddressAsync(addr).get(BlockchainHelper.REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            print("Querying address " + addr + " failed: " + e);
+            return null;
+        }
+    }
 
-            // Now we have <group>,<decrypted msg>
-            String[] strings = data.split(",");
-            if (strings.length < 2) {
-                System.out.println("Queried data format is incorrect: " + data);
-                return null;
-            }
-            if (!crypto.hasKeyForGroup(strings[0])) {
-                System.out.println("Can't decrypt queried data, because key is missing for group: " + strings[0]);
+    /**
+     * Query the given address of the global state without blocking.
+     * Any number of queries can be in flight at the same time.
+     *
+     * @param addr address to query (70 hex chars)
+     * @return future of the response, which is null if the address is empty or cannot be decrypted
+     */
+    public CompletableFuture<Envelope> queryStateAddressAsync(String addr) {
+        CompletableFuture<String> data;
+        if (useRestAPIForQueries) {
+            data = CompletableFuture.supplyAsync(() -> {
+                try {
+                    String raw = blockchainHelper.queryStateAddress(addr);
+                    return raw == null ? null : new String(Base64.getDecoder().decode(raw), UTF_8);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+            });
+        } else {
+            data = blockchainHelper.getStateAsync(addr).thenApply(value -> value.isEmpty() ? null : value.toStringUtf8());
+        }
+        return data.thenCompose(this::decryptQueriedData);
+    }
+
+    /**
+     * Query the global state through the REST API instead of the validator connection
+     *
+     * @param useRestAPI whether to use the REST API for queryStateAddress
+     */
+    public void setUseRestAPIForQueries(boolean useRestAPI) {
+        this.useRestAPIForQueries = useRestAPI;
+    }
+
+    private CompletableFuture<Envelope> decryptQueriedData(String data) {
+        if (data == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        // Now we have <group>,<encrypted msg>[,<options>]
+        CSVStringsMessage message = CSVStringsMessage.parse(data);
+        if (message == null) {
+            System.out.println("Queried data format is incorrect: " + data);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return fetchCiphertext(message).handle((ciphertext, t) -> {
+            if (t != null) {
+                System.out.println("Can't fetch the ciphertext of queried data: " + t.getMessage());
                 return null;
             }
-
             try {
-                String clearText = crypto.decrypt(strings[1], strings[0]);
+                String clearText = decryptMessage(message, ciphertext);
                 return new Gson().fromJson(clearText, Envelope.class);
             } catch (GeneralSecurityException e) {
                 e.printStackTrace();
-                return null;
+            } catch (IllegalStateException e) {
+                System.out.println("Can't decrypt queried data: " + e.getMessage());
             } catch (JsonSyntaxException e) {
                 System.out.println("Queried data could not be deserialized to Envelope");
             }
-
-        } catch (IOException e) {
-            e.printStackTrace();
             return null;
+        });
+    }
+
+    /**
+     * Cache state values that were read (queryStateAddress, getGroupMembers, getKeyExchangeReceipt).
+     * The cache is kept up to date with the state changes of committed blocks in the csvstrings and
+     * KeyExchangeReceipt namespaces.
+     *
+     * @param maxBytes approximate maximum size of the cached addresses and values
+     */
+    public void enableStateCache(long maxBytes) {
+        stateCache = new StateCache(maxBytes);
+        blockchainHelper.setStateCache(stateCache);
+        eventHandler.subscribeToStateDeltas(Arrays.asList(BlockchainHelper.CSVSTRINGS_NAMESPACE,
+                BlockchainHelper.KEY_EXCHANGE_RECEIPT_NAMESPACE));
+    }
+
+    /**
+     * Serve the values written by this client's submitted batches for reads of their output addresses
+     * (queryStateAddress), until the batch is committed or rejected. Saves polling for an own write to appear.
+     */
+    public synchronized void enableReadYourWrites() {
+        if (pendingWrites != null) {
+            return;
         }
+        pendingWrites = new PendingWrites(blockchainHelper::getBatchStatuses, PendingWrites.DEFAULT_STATUS_INTERVAL_MS);
+        blockchainHelper.setPendingWrites(pendingWrites);
+        eventHandler.subscribeToStateDeltas(Collections.singletonList(BlockchainHelper.CSVSTRINGS_NAMESPACE));
+    }
 
-        return null;
+    /**
+     * @return hit rate and size of the state cache or null if it is not enabled
+     */
+    public String getStateCacheStats() {
+        StateCache cache = stateCache;
+        return cache == null ? null : cache.getStats();
+    }
+
+    /**
+     * Receives the state changes of a committed block from the client.EventHandler
+     *
+     * @param changes changes
+     */
+    void stateDeltaReceived(StateChangeList changes) {
+        membershipIndex.apply(changes);
+        PendingWrites pending = pendingWrites;
+        if (pending != null) {
+            pending.apply(changes);
+        }
+        StateCache cache = stateCache;
+        if (cache != null) {
+            cache.apply(changes);
+        }
+    }
+
+    /**
+     * Called by the client.EventHandler when the validator confirmed a new set of subscriptions
+     */
+    void eventSubscriptionChanged() {
+        membershipIndex.clear();
+        StateCache cache = stateCache;
+        if (cache != null) {
+            cache.clear();
+        }
     }
 
     /**
@@ -318,6 +472,153 @@ public class HyperZMQ implements AutoCloseable {
         return sendEnvelopeList(list);
     }
 
+    /**
+     * Send ciphertexts larger than the threshold via a blob store instead of putting them on chain.
+     * All members of the groups need access to the same store.
+     *
+     * @param store          blob store or null to put all messages on chain
+     * @param thresholdBytes ciphertexts up to this size are still put on chain
+     */
+    public void setBlobStore(BlobStore store, int thresholdBytes) {
+        this.blobThreshold = thresholdBytes;
+        this.blobStore = store;
+    }
+
+    /**
+     * Send messages that are only delivered to the clients currently subscribed to the group.
+     * They are not written to the global state, so they cannot be queried or read from the history later.
+     * Suited for high-volume traffic that does not need to be kept.
+     *
+     * @param groupName group name
+     * @param messages  messages
+     * @return success
+     */
+    public boolean sendEphemeralTextsToChain(String groupName, List<String> messages) {
+        if (groupName == null || messages == null || groupName.isEmpty() || messages.isEmpty()) {
+            print("Empty group and/or message!");
+            return false;
+        }
+        List<Transaction> transactionList = new ArrayList<>();
+        for (String message : messages) {
+            byte[] payload = encryptEnvelope(groupName, new Envelope(clientID, MESSAGETYPE_TEXT, message),
+                    Collections.singletonMap(CSVStringsMessage.OPTION_EPHEMERAL, "1"));
+            if (payload == null) {
+                return false;
+            }
+            transactionList.add(blockchainHelper.buildTransaction(
+                    BlockchainHelper.CSVSTRINGS_FAMILY,
+                    "0.1",
+                    payload,
+                    null));
+        }
+        return blockchainHelper.buildAndSendBatch(transactionList);
+    }
+
+    /**
+     * Send a message that may be deleted from the global state once the given time has passed,
+     * see compactGroup.
+     *
+     * @param groupName    group name
+     * @param message      message
+     * @param timeToLiveMs time in milliseconds the message is kept at least
+     * @return success
+     */
+    public boolean sendExpiringTextToChain(String groupName, String message, long timeToLiveMs) {
+        if (groupName == null || message == null || groupName.isEmpty() || message.isEmpty()) {
+            print("Empty group and/or message!");
+            return false;
+        }
+        long expiry = System.currentTimeMillis() + timeToLiveMs;
+        byte[] payload = encryptEnvelope(groupName, new Envelope(clientID, MESSAGETYPE_TEXT, message),
+                Collections.singletonMap(CSVStringsMessage.OPTION_EXPIRES, String.valueOf(expiry)));
+        if (payload == null) {
+            return false;
+        }
+        return blockchainHelper.buildAndSendBatch(Collections.singletonList(blockchainHelper.buildTransaction(
+                BlockchainHelper.CSVSTRINGS_FAMILY,
+                "0.1",
+                payload,
+                null)));
+    }
+
+    /**
+     * Delete the expired messages of a group from the global state.
+     * A single transaction handles a bounded number of history pages, call it again for groups with a long history.
+     * Messages are deleted if they expired before the latest block, which requires the BlockInfo TP and its
+     * batch injector.
+     *
+     * @param groupName group name
+     * @return success of the submission
+     */
+    public boolean compactGroup(String groupName) {
+        if (groupName == null || groupName.isEmpty()) {
+            print("Empty group!");
+            return false;
+        }
+        CSVStringsMessage compaction = new CSVStringsMessage(groupName, "")
+                .setOption(CSVStringsMessage.OPTION_COMPACT, String.valueOf(System.currentTimeMillis()));
+        return blockchainHelper.buildAndSendBatch(Collections.singletonList(blockchainHelper.buildTransaction(
+                BlockchainHelper.CSVSTRINGS_FAMILY,
+                "0.1",
+                compaction.toString().getBytes(UTF_8),
+                null,
+                Collections.singletonList(BlockchainHelper.BLOCK_INFO_NAMESPACE))));
+    }
+
+    public boolean sendEphemeralTextToChain(String groupName, String message) {
+        if (message == null || message.isEmpty()) {
+            print("Empty group and/or message!");
+            return false;
+        }
+        return sendEphemeralTextsToChain(groupName, Collections.singletonList(message));
+    }
+
+    /**
+     * Send the same message to multiple groups.
+     * The message is encrypted once with a random content key, which is attached wrapped with the key of every group.
+     * The message is stored once and the transaction processor fires an event for each group.
+     *
+     * @param groups  groups to send to, the key has to be present for all of them
+     * @param message message
+     * @return success
+     */
+    public boolean sendTextToGroups(Collection<String> groups, String message) {
+        if (message == null || message.isEmpty()) {
+            print("Empty message!");
+            return false;
+        }
+        return sendTextsToGroups(groups, Collections.singletonList(message));
+    }
+
+    /**
+     * Send multiple messages to multiple groups, each message is encrypted once for all groups.
+     * Builds a batch list with a single batch with a transaction per message.
+     *
+     * @param groups   groups to send to, the key has to be present for all of them
+     * @param messages messages
+     * @return success
+     */
+    public boolean sendTextsToGroups(Collection<String> groups, List<String> messages) {
+        if (groups == null || messages == null || groups.isEmpty() || messages.isEmpty()) {
+            print("Empty groups and/or messages!");
+            return false;
+        }
+        List<String> groupList = new ArrayList<>(new LinkedHashSet<>(groups));
+        List<Transaction> transactionList = new ArrayList<>();
+        for (String message : messages) {
+            byte[] payload = encryptEnvelopeForGroups(groupList, new Envelope(clientID, MESSAGETYPE_TEXT, message));
+            if (payload == null) {
+                return false;
+            }
+            transactionList.add(blockchainHelper.buildTransaction(
+                    BlockchainHelper.CSVSTRINGS_FAMILY,
+                    "0.1",
+                    payload,
+                    null));
+        }
+        return blockchainHelper.buildAndSendBatch(transactionList);
+    }
+
     private boolean sendSingleEnvelope(String group, Envelope envelope, String outputAddr) {
         byte[] payloadBytes = encryptEnvelope(group, envelope);
         List<Transaction> transactionList = Collections.singletonList(blockchainHelper.buildTransaction(
@@ -463,6 +764,36 @@ public class HyperZMQ implements AutoCloseable {
         addGroup(groupName, key, null);
     }
 
+    /**
+     * Add multiple groups with external keys at once.
+     * All keys are validated before any group is added, the keystore is written once and
+     * the event subscriptions for all groups are sent in a single request.
+     *
+     * @param groupKeys map of group name to the key in Base64
+     * @param callback  callback to be called when a new messages arrives in any of the groups, can be null
+     * @throws IllegalArgumentException if any of the keys is invalid, no group is added in that case
+     */
+    public void addGroups(Map<String, String> groupKeys, GroupCallback callback) {
+        if (groupKeys == null || groupKeys.isEmpty()) {
+            print("No groups to add!");
+            return;
+        }
+        crypto.addGroups(groupKeys);
+        if (callback != null) {
+            groupKeys.keySet().forEach(groupName -> putCallback(groupName, callback));
+        }
+        eventHandler.subscribeToGroups(groupKeys.keySet());
+    }
+
+    /**
+     * Add multiple groups with external keys at once.
+     *
+     * @param groupKeys map of group name to the key in Base64
+     */
+    public void addGroups(Map<String, String> groupKeys) {
+        addGroups(groupKeys, null);
+    }
+
     /**
      * Add a new callback to a group
      *
@@ -484,6 +815,14 @@ public class HyperZMQ implements AutoCloseable {
         textmessageCallbacks.remove(groupName);
     }
 
+    /**
+     * Unwrap the group keys that were not used yet in the background.
+     * Only has an effect if the keystore was loaded with lazyKeyLoading.
+     */
+    public void warmUpGroupKeys() {
+        crypto.warmUpKeys();
+    }
+
     /**
      * List of known group names for which the secret key is present
      *
@@ -505,20 +844,50 @@ public class HyperZMQ implements AutoCloseable {
 
     /**
      * Receives the message from the client.EventHandler. The message is not decrypted yet.
+     * The read of a referenced address and of a blob is started right away, decryption and the callbacks run on
+     * the delivery thread in the order the events were received, so the event thread never waits for the validator
+     * or the blob store.
+     *
+     * @param message message of the event
+     */
+    void newEventReceived(CSVStringsMessage message) {
+        CompletableFuture<String> ciphertext = fetchCiphertext(message);
+        try {
+            deliveryExecutor.execute(() -> {
+                String fetched;
+                try {
+                    fetched = ciphertext.get(BlockchainHelper.REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException | TimeoutException e) {
+                    print("Fetching the ciphertext of message (" + message + ") failed: " + e.getMessage());
+                    return;
+                }
+                deliverEvent(message, fetched);
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Decrypt the message of an event and pass it to the callbacks. Only called by the delivery thread.
      *
-     * @param group            group name
-     * @param encryptedMessage encrypted message
+     * @param message    message of the event
+     * @param ciphertext ciphertext of the message, see {@link #fetchCiphertext(CSVStringsMessage)}
      */
-    synchronized void newEventReceived(String group, String encryptedMessage) {
+    private void deliverEvent(CSVStringsMessage message, String ciphertext) {
+        String group = message.getGroup();
         String plainMessage;
         try {
-            plainMessage = crypto.decrypt(encryptedMessage, group);
+            plainMessage = decryptMessage(message, ciphertext);
             //logprint("New message in group '" + group + "': " + plainMessage);
         } catch (GeneralSecurityException e) {
             e.printStackTrace();
             return;
         } catch (IllegalStateException e) {
-            print("Received a message in a group for which a key is not present. Message: (" + group + "," + encryptedMessage + ")");
+            print("Received a message in a group for which a key is not present. Message: (" + message + ")");
             return;
         }
         Envelope envelope = new Gson().fromJson(plainMessage, Envelope.class);
@@ -556,6 +925,18 @@ public class HyperZMQ implements AutoCloseable {
     @Override
     public void close() throws Exception {
         eventHandler.close();
+        deliveryExecutor.shutdownNow();
+        blobFetchExecutor.shutdownNow();
+        blockchainHelper.close();
+        crypto.close();
+    }
+
+    /**
+     * Changes to groups and keys are written to the keystore in the background.
+     * Blocks until all changes made so far are written.
+     */
+    public void flushKeyStore() {
+        crypto.flush();
     }
 
     /**
@@ -631,33 +1012,22 @@ public class HyperZMQ implements AutoCloseable {
 
     private boolean putCallback(String groupName, GroupCallback callback) {
         //logprint("New subscription for group: " + groupName);
-        if (textmessageCallbacks.containsKey(groupName)) {
-            List<GroupCallback> list = textmessageCallbacks.get(groupName);
-            if (list.contains(callback)) {
-                //logprint("Subscription skipped, callback already registered.");
-                return false;
-            } else {
-                return list.add(callback);
-                //logprint("Subscription completed, callback registered to existing group.");
-            }
-        } else {
-            List<GroupCallback> newList = new ArrayList<>();
-            newList.add(callback);
-            textmessageCallbacks.put(groupName, newList);
-            return true;
-            //logprint("Subscription completed, new group created.");
-        }
+        // False if the callback is already registered
+        return textmessageCallbacks.computeIfAbsent(groupName, g -> new CopyOnWriteArrayList<>()).addIfAbsent(callback);
     }
 
     private byte[] encryptEnvelope(String group, Envelope envelope) {
+        return encryptEnvelope(group, envelope, Collections.emptyMap());
+    }
+
+    private byte[] encryptEnvelope(String group, Envelope envelope, Map<String, String> options) {
         // Create the payload in CSV format
         // The group stays in clearText so clients attempting to decrypt can know if they can without trial and error
-        StringBuilder msgBuilder = new StringBuilder();
-        msgBuilder.append(group).append(",");
+        CSVStringsMessage message;
         // Encrypt the whole message
         try {
-            msgBuilder.append(crypto.encrypt(envelope.toString(), group));
-        } catch (GeneralSecurityException e) {
+            message = newMessage(Collections.singletonList(group), crypto.encrypt(envelope.toString(), group));
+        } catch (GeneralSecurityException | IOException e) {
             e.printStackTrace();
             print("Message will not be send.");
             return null;
@@ -665,7 +1035,145 @@ public class HyperZMQ implements AutoCloseable {
             print("Trying to encrypt for group for which the key is not present (" + group + "). Message will not be send.");
             return null;
         }
-        return msgBuilder.toString().getBytes(UTF_8);
+        options.forEach(message::setOption);
+        return message.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Put a ciphertext that is larger than the blob threshold into the blob store, only its hash and size are sent
+     */
+    private CSVStringsMessage newMessage(List<String> groups, String ciphertext) throws IOException {
+        BlobStore store = blobStore;
+        if (store == null || ciphertext.length() <= blobThreshold) {
+            return new CSVStringsMessage(groups, ciphertext);
+        }
+        byte[] data = ciphertext.getBytes(UTF_8);
+        return new CSVStringsMessage(groups, "")
+                .setOption(CSVStringsMessage.OPTION_BLOB, store.put(data))
+                .setOption(CSVStringsMessage.OPTION_SIZE, String.valueOf(data.length));
+    }
+
+    /**
+     * Fetch the ciphertext of a message that references a blob and verify it against the hash and size on chain
+     */
+    private String fetchBlob(CSVStringsMessage message) throws GeneralSecurityException {
+        BlobStore store = blobStore;
+        if (store == null) {
+            throw new IllegalStateException("Message references a blob, but no blob store is set");
+        }
+        String hash = message.getOption(CSVStringsMessage.OPTION_BLOB);
+        if (!SawtoothUtils.isHash(hash)) {
+            throw new GeneralSecurityException("Message references a malformed blob hash: " + hash);
+        }
+        byte[] data;
+        try {
+            data = store.get(hash);
+        } catch (IOException e) {
+            throw new IllegalStateException("Reading blob " + hash + " failed: " + e.getLocalizedMessage());
+        }
+        if (data == null) {
+            throw new IllegalStateException("Blob " + hash + " not found");
+        }
+        if (!String.valueOf(data.length).equals(message.getOption(CSVStringsMessage.OPTION_SIZE))
+                || !SawtoothUtils.hash(data).equals(hash)) {
+            throw new GeneralSecurityException("Blob " + hash + " does not match its hash");
+        }
+        return new String(data, UTF_8);
+    }
+
+    /**
+     * Encrypt the envelope once with a new content key and wrap that key for every group
+     *
+     * @param groups   groups
+     * @param envelope envelope
+     * @return payload in the format group1|group2,encrypted envelope,keys=wrappedKey1|wrappedKey2 or null if error
+     */
+    private byte[] encryptEnvelopeForGroups(List<String> groups, Envelope envelope) {
+        try {
+            SecretKey contentKey = Crypto.generateSecretKey();
+            CSVStringsMessage message = newMessage(groups, Crypto.encrypt(envelope.toString(), contentKey));
+            List<String> wrappedKeys = new ArrayList<>();
+            for (String group : groups) {
+                wrappedKeys.add(crypto.wrapKey(contentKey, group));
+            }
+            message.setOption(CSVStringsMessage.OPTION_WRAPPED_KEYS, CSVStringsMessage.joinList(wrappedKeys));
+            return message.toString().getBytes(UTF_8);
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            print("Message will not be send.");
+            return null;
+        } catch (IllegalStateException e) {
+            print("Trying to encrypt for a group for which the key is not present (" + e.getMessage() + "). Message will not be send.");
+            return null;
+        }
+    }
+
+    /**
+     * Read the message a reference points to. The state cache and pending writes are used before the validator
+     * is asked.
+     *
+     * @param message message from an event or the state
+     * @return future of the message holding the ciphertext, which is the message itself unless it is a reference
+     */
+    private CompletableFuture<CSVStringsMessage> resolveReference(CSVStringsMessage message) {
+        if (!message.hasOption(CSVStringsMessage.OPTION_REFERENCE)) {
+            return CompletableFuture.completedFuture(message);
+        }
+        String address = message.getOption(CSVStringsMessage.OPTION_REFERENCE);
+        return blockchainHelper.getStateAsync(address).thenApply(value -> {
+            CSVStringsMessage source = CSVStringsMessage.parse(value.toStringUtf8());
+            if (source == null) {
+                throw new CompletionException(new GeneralSecurityException("Referenced message not found at " + address));
+            }
+            return source;
+        });
+    }
+
+    /**
+     * Resolve the reference of a message and read its blob, if any. Blobs are read on the blob fetch threads.
+     *
+     * @param message message from an event or the state
+     * @return future of the ciphertext of the message
+     */
+    private CompletableFuture<String> fetchCiphertext(CSVStringsMessage message) {
+        return resolveReference(message).thenCompose(source -> {
+            if (!source.hasOption(CSVStringsMessage.OPTION_BLOB)) {
+                return CompletableFuture.completedFuture(source.getMessage());
+            }
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return fetchBlob(source);
+                } catch (GeneralSecurityException e) {
+                    throw new CompletionException(e);
+                }
+            }, blobFetchExecutor);
+        });
+    }
+
+    /**
+     * Decrypt a message, resolving the content key of multi-group messages.
+     *
+     * @param message    message from an event or the state
+     * @param ciphertext ciphertext of the message, see {@link #fetchCiphertext(CSVStringsMessage)}
+     * @return plaintext
+     * @throws IllegalStateException if the key of the group(s) is not present
+     */
+    private String decryptMessage(CSVStringsMessage message, String ciphertext) throws GeneralSecurityException, IllegalStateException {
+        if (message.hasOption(CSVStringsMessage.OPTION_WRAPPED_KEY)) {
+            SecretKey contentKey = crypto.unwrapKey(message.getOption(CSVStringsMessage.OPTION_WRAPPED_KEY), message.getGroup());
+            return Crypto.decrypt(ciphertext, contentKey);
+        }
+        if (message.hasOption(CSVStringsMessage.OPTION_WRAPPED_KEYS)) {
+            List<String> groups = message.getGroups();
+            List<String> wrappedKeys = CSVStringsMessage.splitList(message.getOption(CSVStringsMessage.OPTION_WRAPPED_KEYS));
+            for (int i = 0; i < groups.size() && i < wrappedKeys.size(); i++) {
+                if (crypto.hasKeyForGroup(groups.get(i))) {
+                    return Crypto.decrypt(ciphertext, crypto.unwrapKey(wrappedKeys.get(i), groups.get(i)));
+                }
+            }
+            throw new IllegalStateException("No key found for any of the groups " + groups);
+        }
+        return crypto.decrypt(ciphertext, message.getGroup());
     }
 
     protected void print(String message) {
@@ -687,37 +1195,210 @@ public class HyperZMQ implements AutoCloseable {
         blockchainHelper.buildAndSendBatch(Collections.singletonList(t));
     }
 
+    /**
+     * @param groupName group
+     * @return number of messages that were sent to the group
+     */
+    public long getHistorySize(String groupName) {
+        return readHistoryHead(groupName).getCount();
+    }
+
+    /**
+     * Read messages of a group by their sequence number (0 is the first message sent to the group).
+     * Only the pages of the history index that contain the requested range are read,
+     * the messages themselves are fetched concurrently.
+     *
+     * @param groupName group
+     * @param fromSeq   sequence number of the first message
+     * @param limit     maximum number of messages
+     * @return messages in the order they were sent, without expired messages and those that could not be read
+     * or decrypted
+     */
+    public List<Envelope> getHistory(String groupName, long fromSeq, int limit) {
+        GroupHistory head = readHistoryHead(groupName);
+        long toSeq = Math.min(head.getCount(), fromSeq + limit);
+        if (fromSeq < 0 || fromSeq >= toSeq) {
+            return Collections.emptyList();
+        }
+
+        try {
+            // Request the sealed pages in the range at once
+            Map<Long, CompletableFuture<ByteString>> pageRequests = new HashMap<>();
+            for (long page = fromSeq / GroupHistory.PAGE_SIZE; page <= (toSeq - 1) / GroupHistory.PAGE_SIZE; page++) {
+                if (page < head.getSealedPages()) {
+                    pageRequests.put(page, blockchainHelper.getStateAsync(
+                            GroupHistory.pageAddress(BlockchainHelper.CSVSTRINGS_NAMESPACE, groupName, page)));
+                }
+            }
+            Map<Long, List<String>> pages = new HashMap<>();
+            pages.put(head.getSealedPages(), head.getOpenPage());
+            for (Map.Entry<Long, CompletableFuture<ByteString>> request : pageRequests.entrySet()) {
+                ByteString page = request.getValue().get(BlockchainHelper.REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                pages.put(request.getKey(), GroupHistory.parsePage(page.toStringUtf8()));
+            }
+
+            List<CompletableFuture<Envelope>> messages = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            for (long seq = fromSeq; seq < toSeq; seq++) {
+                List<String> page = pages.get(seq / GroupHistory.PAGE_SIZE);
+                int index = (int) (seq % GroupHistory.PAGE_SIZE);
+                if (index >= page.size()) {
+                    print("History page of group '" + groupName + "' is incomplete at " + seq);
+                    break;
+                }
+                String entry = page.get(index);
+                if (GroupHistory.isCompacted(entry) || GroupHistory.isExpired(entry, now)) {
+                    continue;
+                }
+                messages.add(queryStateAddressAsync(GroupHistory.addressOf(entry)));
+            }
+
+            List<Envelope> ret = new ArrayList<>();
+            for (CompletableFuture<Envelope> message : messages) {
+                Envelope envelope = message.get(BlockchainHelper.REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (envelope != null) {
+                    ret.add(envelope);
+                }
+            }
+            return ret;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        } catch (ExecutionException | TimeoutException e) {
+            print("Reading the history of group '" + groupName + "' failed: " + e);
+            return Collections.emptyList();
+        }
+    }
+
+    private GroupHistory readHistoryHead(String groupName) {
+        String head = blockchainHelper.getStateZMQ(
+                GroupHistory.headAddress(BlockchainHelper.CSVSTRINGS_NAMESPACE, groupName));
+        try {
+            return GroupHistory.parse(head);
+        } catch (IllegalArgumentException e) {
+            print(e.getMessage());
+            return GroupHistory.parse("");
+        }
+    }
+
+    /**
+     * The members are read from state once per group and then kept current with committed blocks.
+     *
+     * @param groupName group
+     * @return public keys of the members in the order they joined, empty if the group has no members
+     * @throws IllegalStateException if the members could not be read
+     */
     public List<String> getGroupMembers(String groupName) {
        /*
         if (!groupIsAvailable(groupName)) {
             throw new IllegalArgumentException("Cant get members of group that the client is not part of!");
         }
 */
-        String address = SawtoothUtils.namespaceHashAddress(BlockchainHelper.KEY_EXCHANGE_RECEIPT_NAMESPACE, groupName);
-        print("Getting members of group '" + groupName + "' at address " + address);
-        String resp = blockchainHelper.getStateZMQ(address);
-        if (resp == null) return null;
-        //print("getGroupMembers: " + resp);
-        return Arrays.asList(resp.split(","));
+        return membershipIndex.getMembers(groupName).asList();
+    }
+
+    /**
+     * Check whether a public key is in the member list of a group, without reading state once the group is indexed.
+     *
+     * @param groupName group
+     * @param publicKey Sawtooth public key of the member
+     * @return whether the key is a member
+     * @throws IllegalStateException if the members could not be read
+     */
+    public boolean isGroupMember(String groupName, String publicKey) {
+        return membershipIndex.isMember(groupName, publicKey);
     }
 
     public KeyExchangeReceipt getKeyExchangeReceipt(String memberPublicKey, String applicantPublicKey, @Nullable String group) {
+        String address = keyExchangeReceiptAddress(memberPublicKey, applicantPublicKey, group);
+        print("Getting receipt at address: " + address);
+        String recv = blockchainHelper.getStateZMQ(address);
+        return parseKeyExchangeReceipt(recv);
+    }
+
+    /**
+     * Get the receipts of all members of a group with one round trip.
+     * A member joins through the member that joined before it, so the receipt of each member after the first
+     * is the one issued by its predecessor in the member list.
+     *
+     * @param groupName group
+     * @return receipts by applicant public key, members without a receipt are left out
+     * @throws IllegalStateException if the members could not be read
+     */
+    public Map<String, KeyExchangeReceipt> getKeyExchangeReceipts(String groupName) {
+        List<String> members = getGroupMembers(groupName);
+        Map<String, String> addresses = new LinkedHashMap<>(); // address -> applicant
+        for (int i = 1; i < members.size(); i++) {
+            addresses.put(keyExchangeReceiptAddress(members.get(i - 1), members.get(i), groupName), members.get(i));
+        }
+
+        Map<String, KeyExchangeReceipt> ret = new LinkedHashMap<>();
+        try {
+            Map<String, ByteString> values = blockchainHelper.getStatesAsync(addresses.keySet())
+                    .get(BlockchainHelper.REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            values.forEach((address, value) -> {
+                if (!value.isEmpty()) {
+                    KeyExchangeReceipt receipt = parseKeyExchangeReceipt(value.toStringUtf8());
+                    if (receipt != null) {
+                        ret.put(addresses.get(address), receipt);
+                    }
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            print("Reading the receipts of group '" + groupName + "' failed: " + e);
+        }
+        return ret;
+    }
+
+    private static String keyExchangeReceiptAddress(String memberPublicKey, String applicantPublicKey, @Nullable String group) {
         String toHash = memberPublicKey + applicantPublicKey;
         if (group != null) {
             toHash += group;
         }
+        return SawtoothUtils.namespaceHashAddress(BlockchainHelper.KEY_EXCHANGE_RECEIPT_NAMESPACE, toHash);
+    }
 
-        String address = SawtoothUtils.namespaceHashAddress(BlockchainHelper.KEY_EXCHANGE_RECEIPT_NAMESPACE, toHash);
-        print("Getting receipt at address: " + address);
-        String recv = blockchainHelper.getStateZMQ(address);
+    private KeyExchangeReceipt parseKeyExchangeReceipt(String json) {
         try {
-            return new Gson().fromJson(recv, KeyExchangeReceipt.class);
+            return new Gson().fromJson(json, KeyExchangeReceipt.class);
         } catch (JsonSyntaxException e) {
-            print("Could not deserialize receipt: " + recv);
+            print("Could not deserialize receipt: " + json);
         }
         return null;
     }
 
+    /**
+     * List all state entries under a namespace or address prefix. The entries are fetched page by page while the
+     * stream is consumed, with the next page requested ahead in the background.
+     *
+     * @param prefix   namespace or address prefix
+     * @param pageSize entries per request to the validator
+     * @return stream of the entries in address order
+     */
+    public Stream<ClientStateListResponse.Entry> listState(String prefix, int pageSize) {
+        Iterator<ClientStateListResponse.Entry> it = blockchainHelper.listState(prefix, pageSize);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    public Stream<ClientStateListResponse.Entry> listState(String prefix) {
+        return listState(prefix, DEFAULT_STATE_LIST_PAGE_SIZE);
+    }
+
+    /**
+     * @return all key exchange receipts on the chain
+     */
+    public Stream<KeyExchangeReceipt> getKeyExchangeReceipts() {
+        // The namespace also holds the member lists of the groups, which are not JSON
+        return listState(BlockchainHelper.KEY_EXCHANGE_RECEIPT_NAMESPACE)
+                .map(e -> e.getData().toStringUtf8())
+                .filter(s -> s.startsWith("{"))
+                .map(this::parseKeyExchangeReceipt)
+                .filter(Objects::nonNull);
+    }
+
     public String getClientID() {
         return clientID;
     }
@@ -738,7 +1419,13 @@ public class HyperZMQ implements AutoCloseable {
 
     public void tryJoinGroup(String groupName, JoinGroupStatusCallback joinGroupStatusCallback) {
         // Get the client responsible for the group by checking the entry
-        List<String> members = getGroupMembers(groupName);
+        List<String> members;
+        try {
+            members = getGroupMembers(groupName);
+        } catch (IllegalStateException e) {
+            print(e.getMessage());
+            return;
+        }
         if (members.isEmpty()) {
             // TODO
             System.out.println(groupName + " does not have any members. Try creating the group.");
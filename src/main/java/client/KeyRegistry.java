@@ -0,0 +1,141 @@
+package client;
+
+import javax.crypto.SecretKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Holds the group keys and CURVE keypairs of a client.
+ * Lookups by group name or keypair alias are lock-free and O(1), updates are visible to all threads
+ * as soon as the method returns.
+ */
+class KeyRegistry {
+
+    /**
+     * Key of a group, null while it is still wrapped in the keystore. One entry per group keeps the lookups
+     * atomic, a group is never missing or listed twice while its key is being unwrapped.
+     */
+    private static final class GroupKey {
+        volatile SecretKey key;
+
+        GroupKey(SecretKey key) {
+            this.key = key;
+        }
+    }
+
+    private final ConcurrentHashMap<String, GroupKey> groupKeys = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Keypair> keypairs = new ConcurrentHashMap<>();
+    private final Function<String, SecretKey> keyLoader;
+
+    /**
+     * @param keyLoader used to unwrap keys of groups that were added with addUnloadedGroup
+     */
+    KeyRegistry(Function<String, SecretKey> keyLoader) {
+        this.keyLoader = keyLoader;
+    }
+
+    /**
+     * @param groupName group
+     * @return key or null if not found or the key could not be unwrapped
+     */
+    SecretKey getGroupKey(String groupName) {
+        GroupKey entry = groupKeys.get(groupName);
+        if (entry == null) {
+            return null;
+        }
+        SecretKey key = entry.key;
+        if (key != null) {
+            return key;
+        }
+        // The lock makes sure the key is unwrapped only once if multiple threads want it at the same time
+        synchronized (entry) {
+            if (entry.key == null) {
+                // If unwrapping fails the group stays wrapped, so that the key is still written to the keystore
+                entry.key = keyLoader.apply(groupName);
+            }
+            return entry.key;
+        }
+    }
+
+    boolean hasGroup(String groupName) {
+        return groupKeys.containsKey(groupName);
+    }
+
+    void putGroupKey(String groupName, SecretKey key) {
+        groupKeys.put(groupName, new GroupKey(key));
+    }
+
+    /**
+     * @return true if the key was added, false if the group already exists
+     */
+    boolean putGroupKeyIfAbsent(String groupName, SecretKey key) {
+        return groupKeys.putIfAbsent(groupName, new GroupKey(key)) == null;
+    }
+
+    /**
+     * Register a group whose key is unwrapped on first use
+     *
+     * @param groupName group
+     */
+    void addUnloadedGroup(String groupName) {
+        groupKeys.putIfAbsent(groupName, new GroupKey(null));
+    }
+
+    void removeGroup(String groupName) {
+        groupKeys.remove(groupName);
+    }
+
+    List<String> getGroupNames() {
+        return new ArrayList<>(groupKeys.keySet());
+    }
+
+    List<String> getUnloadedGroupNames() {
+        List<String> names = new ArrayList<>();
+        groupKeys.forEach((name, entry) -> {
+            if (entry.key == null) {
+                names.add(name);
+            }
+        });
+        return names;
+    }
+
+    /**
+     * @return copy of all group keys that are unwrapped
+     */
+    Map<String, SecretKey> copyGroupKeys() {
+        Map<String, SecretKey> copy = new HashMap<>();
+        groupKeys.forEach((name, entry) -> {
+            SecretKey key = entry.key;
+            if (key != null) {
+                copy.put(name, key);
+            }
+        });
+        return copy;
+    }
+
+    Keypair getKeypair(String alias) {
+        return keypairs.get(alias);
+    }
+
+    /**
+     * Add a keypair, replacing one with the same alias
+     *
+     * @param keypair keypair
+     */
+    void putKeypair(Keypair keypair) {
+        keypairs.put(keypair.alias, keypair);
+    }
+
+    boolean removeKeypair(String alias) {
+        return keypairs.remove(alias) != null;
+    }
+
+    Collection<Keypair> getKeypairs() {
+        return new ArrayList<>(keypairs.values());
+    }
+}
@@ -0,0 +1,110 @@
+package client;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Write-behind persistence for the key store and data file.
+ * Mutations only mark the store dirty, a background thread writes a snapshot after a short delay so that
+ * bursts of mutations (e.g. adding many groups) are coalesced into a single write.
+ * Use flush() if the data has to be on disk before continuing.
+ */
+class KeystorePersister implements AutoCloseable {
+
+    static final long DEFAULT_COALESCE_DELAY_MS = 200;
+
+    private final Storage storage;
+    private final Supplier<Data> snapshotSupplier;
+    private final long coalesceDelayMS;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+    private final Object writeLock = new Object(); // Only one write at a time
+
+    /**
+     * @param storage          storage to write to
+     * @param snapshotSupplier creates a consistent copy of the data to write, called from the writing thread
+     * @param coalesceDelayMS  time to wait for further mutations before writing
+     */
+    KeystorePersister(Storage storage, Supplier<Data> snapshotSupplier, long coalesceDelayMS) {
+        this.storage = storage;
+        this.snapshotSupplier = snapshotSupplier;
+        this.coalesceDelayMS = coalesceDelayMS;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "KeystorePersister");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    KeystorePersister(Storage storage, Supplier<Data> snapshotSupplier) {
+        this(storage, snapshotSupplier, DEFAULT_COALESCE_DELAY_MS);
+    }
+
+    /**
+     * Mark the data as changed. The write happens asynchronously, at most one write is pending at any time.
+     */
+    void markDirty() {
+        dirty.set(true);
+        if (writeScheduled.compareAndSet(false, true)) {
+            try {
+                executor.schedule(this::backgroundWrite, coalesceDelayMS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Already closed, write synchronously instead
+                writeScheduled.set(false);
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Durability barrier: when this method returns, all mutations that were marked before the call are written.
+     *
+     * @throws InternalError if writing failed
+     */
+    void flush() {
+        synchronized (writeLock) {
+            if (dirty.getAndSet(false)) {
+                write();
+            }
+        }
+    }
+
+    boolean isDirty() {
+        return dirty.get();
+    }
+
+    private void backgroundWrite() {
+        // Reset first, so mutations happening during the write schedule another one
+        writeScheduled.set(false);
+        try {
+            flush();
+        } catch (InternalError e) {
+            System.out.println("[KeystorePersister] Writing the keystore failed, retrying with the next mutation: "
+                    + e.getLocalizedMessage());
+        }
+    }
+
+    private void write() {
+        try {
+            storage.saveData(snapshotSupplier.get());
+        } catch (InternalError e) {
+            // Keep the data marked so the next flush tries again
+            dirty.set(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes outstanding changes and stops the background thread.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        flush();
+    }
+}
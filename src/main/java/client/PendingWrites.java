@@ -0,0 +1,196 @@
+package client;
+
+import com.google.protobuf.ByteString;
+import sawtooth.sdk.protobuf.ClientBatchStatus;
+import sawtooth.sdk.protobuf.ClientBatchStatusResponse;
+import sawtooth.sdk.protobuf.StateChange;
+import sawtooth.sdk.protobuf.StateChangeList;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Values written by the batches this client submitted that are not committed yet, so that reads of those
+ * addresses see the client's own writes.
+ * An entry is dropped once its address is changed by a committed block. Batches that end up invalid or unknown
+ * to the validator are detected by a periodic status request for all pending batches at once. A batch is only
+ * considered lost if it is still unknown a grace period after its submission, since the validator does not know
+ * a batch that is still on its way.
+ */
+class PendingWrites implements AutoCloseable {
+
+    static final long DEFAULT_STATUS_INTERVAL_MS = 1000;
+    static final long DEFAULT_UNKNOWN_GRACE_MS = 10000;
+
+    private static final class Pending {
+        final String batchId;
+        final ByteString value;
+
+        Pending(String batchId, ByteString value) {
+            this.batchId = batchId;
+            this.value = value;
+        }
+    }
+
+    private static final class Batch {
+        final Set<String> addresses;
+        // System.nanoTime() when the submission succeeded, unset while it is in progress
+        volatile long submittedNanos;
+        volatile boolean submitted = false;
+
+        Batch(Set<String> addresses) {
+            this.addresses = addresses;
+        }
+    }
+
+    private final Map<String, Pending> byAddress = new ConcurrentHashMap<>();
+    private final Map<String, Batch> batches = new ConcurrentHashMap<>();
+    private final Function<Collection<String>, CompletableFuture<ClientBatchStatusResponse>> statusQuery;
+    private final long unknownGraceNanos;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "PendingWrites");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param statusQuery      requests the status of the given batch IDs
+     * @param statusIntervalMS interval of the status requests while batches are pending
+     */
+    PendingWrites(Function<Collection<String>, CompletableFuture<ClientBatchStatusResponse>> statusQuery,
+                  long statusIntervalMS) {
+        this(statusQuery, statusIntervalMS, DEFAULT_UNKNOWN_GRACE_MS);
+    }
+
+    /**
+     * @param statusQuery      requests the status of the given batch IDs
+     * @param statusIntervalMS interval of the status requests while batches are pending
+     * @param unknownGraceMS   time after the submission during which an unknown batch is still expected to arrive
+     */
+    PendingWrites(Function<Collection<String>, CompletableFuture<ClientBatchStatusResponse>> statusQuery,
+                  long statusIntervalMS, long unknownGraceMS) {
+        this.statusQuery = statusQuery;
+        this.unknownGraceNanos = TimeUnit.MILLISECONDS.toNanos(unknownGraceMS);
+        executor.scheduleWithFixedDelay(this::checkStatus, statusIntervalMS, statusIntervalMS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Register the writes of a batch before it is submitted
+     *
+     * @param batchId header signature of the batch
+     * @param writes  address to value
+     */
+    void add(String batchId, Map<String, ByteString> writes) {
+        if (writes.isEmpty()) {
+            return;
+        }
+        Set<String> addresses = ConcurrentHashMap.newKeySet();
+        addresses.addAll(writes.keySet());
+        // Publish the batch before its writes, apply() only looks for batches of writes it finds
+        batches.put(batchId, new Batch(addresses));
+        writes.forEach((address, value) -> byAddress.put(address, new Pending(batchId, value)));
+    }
+
+    /**
+     * Record that the validator accepted the batch, from now on it may be dropped if the validator reports it
+     * as unknown for longer than the grace period
+     *
+     * @param batchId header signature of the batch
+     */
+    void submitted(String batchId) {
+        Batch batch = batches.get(batchId);
+        if (batch != null) {
+            batch.submittedNanos = System.nanoTime();
+            batch.submitted = true;
+        }
+    }
+
+    /**
+     * @param address address
+     * @return the value written by a pending batch or null
+     */
+    ByteString get(String address) {
+        Pending pending = byAddress.get(address);
+        return pending == null ? null : pending.value;
+    }
+
+    /**
+     * Drop all writes of a batch, e.g. because its submission failed
+     *
+     * @param batchId header signature of the batch
+     */
+    void remove(String batchId) {
+        Batch batch = batches.remove(batchId);
+        if (batch != null) {
+            // A later batch could have written the same address
+            batch.addresses.forEach(address -> byAddress.computeIfPresent(address,
+                    (a, pending) -> pending.batchId.equals(batchId) ? null : pending));
+        }
+    }
+
+    /**
+     * The state now holds the committed values of the changed addresses
+     *
+     * @param changes changes from a sawtooth/state-delta event
+     */
+    void apply(StateChangeList changes) {
+        for (StateChange change : changes.getStateChangesList()) {
+            Pending pending = byAddress.remove(change.getAddress());
+            if (pending == null) {
+                continue;
+            }
+            Batch batch = batches.get(pending.batchId);
+            if (batch != null) {
+                batch.addresses.remove(change.getAddress());
+                if (batch.addresses.isEmpty()) {
+                    batches.remove(pending.batchId);
+                }
+            }
+        }
+    }
+
+    int size() {
+        return byAddress.size();
+    }
+
+    private void checkStatus() {
+        if (batches.isEmpty()) {
+            return;
+        }
+        try {
+            ClientBatchStatusResponse response = statusQuery.apply(new ArrayList<>(batches.keySet()))
+                    .get(BlockchainHelper.REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (response.getStatus() != ClientBatchStatusResponse.Status.OK) {
+                return;
+            }
+            for (ClientBatchStatus status : response.getBatchStatusesList()) {
+                switch (status.getStatus()) {
+                    case COMMITTED:
+                        // Normally dropped by the state change already
+                    case INVALID:
+                        remove(status.getBatchId());
+                        break;
+                    case UNKNOWN:
+                        Batch batch = batches.get(status.getBatchId());
+                        if (batch != null && batch.submitted
+                                && System.nanoTime() - batch.submittedNanos > unknownGraceNanos) {
+                            remove(status.getBatchId());
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            System.out.println("[PendingWrites] Batch status request failed: " + e);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -14,6 +14,7 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -25,10 +26,23 @@ public class SawtoothUtils {
 
     //private static final String HEX_CHARACTERS = "0123456789ABCDEF";
     private static final String HEX_CHARACTERS = "0123456789abcdef";
+    private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{128}");
     private static boolean doPrint = false;
 
     public static String hash(String toHash) {
-        return Utils.hash512(toHash.getBytes(StandardCharsets.UTF_8));
+        return hash(toHash.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String hash(byte[] toHash) {
+        return Utils.hash512(toHash);
+    }
+
+    /**
+     * @param hash string to check, e.g. a hash received in a message
+     * @return whether the string has the format of the values returned by hash()
+     */
+    public static boolean isHash(String hash) {
+        return hash != null && HASH_PATTERN.matcher(hash).matches();
     }
 
     /**
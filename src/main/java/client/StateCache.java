@@ -0,0 +1,152 @@
+package client;
+
+import com.google.protobuf.ByteString;
+import sawtooth.sdk.protobuf.StateChange;
+import sawtooth.sdk.protobuf.StateChangeList;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LRU cache of state values, bounded by the approximate number of bytes held.
+ * Entries are kept up to date with the state changes of committed blocks (sawtooth/state-delta events).
+ */
+class StateCache {
+
+    // Rough per entry overhead of the map entry, key string and ByteString objects
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    private final long maxBytes;
+    private long currentBytes = 0;
+    private final LinkedHashMap<String, ByteString> entries = new LinkedHashMap<>(16, 0.75f, true); // access order
+    // Incremented with every applied state change, values read before a change are not cached afterwards
+    private final AtomicLong version = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxBytes maximum size of addresses and values held
+     */
+    StateCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param address address
+     * @return the cached value or null
+     */
+    synchronized ByteString get(String address) {
+        ByteString value = entries.get(address);
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Get the version before reading a value from the validator and pass it to put afterwards.
+     *
+     * @return current version
+     */
+    long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Cache a value that was read from the validator.
+     * Skipped if any state change was applied since versionBeforeRead, because the value might be outdated.
+     *
+     * @param address           address
+     * @param value             value read
+     * @param versionBeforeRead value of getVersion() before the read was started
+     */
+    synchronized void put(String address, ByteString value, long versionBeforeRead) {
+        if (value == null || version.get() != versionBeforeRead) {
+            return;
+        }
+        putEntry(address, value);
+    }
+
+    /**
+     * Apply the changes of a committed block. Cached entries are updated or removed, other addresses are ignored.
+     *
+     * @param changes changes from a sawtooth/state-delta event
+     */
+    synchronized void apply(StateChangeList changes) {
+        version.incrementAndGet();
+        for (StateChange change : changes.getStateChangesList()) {
+            String address = change.getAddress();
+            if (!entries.containsKey(address)) {
+                continue;
+            }
+            updates.increment();
+            if (change.getType() == StateChange.Type.SET) {
+                putEntry(address, change.getValue());
+            } else {
+                removeEntry(address);
+            }
+        }
+    }
+
+    /**
+     * Drop everything, e.g. if state changes could have been missed
+     */
+    synchronized void clear() {
+        version.incrementAndGet();
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    synchronized String getStats() {
+        return "StateCache{entries=" + entries.size()
+                + ", bytes=" + currentBytes + "/" + maxBytes
+                + ", hits=" + hits.sum()
+                + ", misses=" + misses.sum()
+                + ", hitRate=" + String.format("%.3f", getHitRate())
+                + ", updates=" + updates.sum()
+                + ", evictions=" + evictions.sum() + "}";
+    }
+
+    private void putEntry(String address, ByteString value) {
+        removeEntry(address);
+        long size = sizeOf(address, value);
+        if (size > maxBytes) {
+            return;
+        }
+        entries.put(address, value);
+        currentBytes += size;
+        // Evict least recently used entries
+        Iterator<Map.Entry<String, ByteString>> it = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, ByteString> eldest = it.next();
+            currentBytes -= sizeOf(eldest.getKey(), eldest.getValue());
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    private void removeEntry(String address) {
+        ByteString old = entries.remove(address);
+        if (old != null) {
+            currentBytes -= sizeOf(address, old);
+        }
+    }
+
+    private static long sizeOf(String address, ByteString value) {
+        return address.length() + value.size() + ENTRY_OVERHEAD_BYTES;
+    }
+}
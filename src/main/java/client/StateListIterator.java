@@ -0,0 +1,81 @@
+package client;
+
+import sawtooth.sdk.protobuf.ClientStateListResponse;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Iterates over all state entries under an address prefix, one ClientStateListRequest per page.
+ * While a page is consumed, the next one is already requested in the background.
+ * All pages are read from the state root of the first response, so the listing is a consistent snapshot.
+ */
+class StateListIterator implements Iterator<ClientStateListResponse.Entry> {
+
+    private final BlockchainHelper blockchainHelper;
+    private final String prefix;
+    private final int pageSize;
+
+    private String stateRoot = "";
+    private Iterator<ClientStateListResponse.Entry> currentPage;
+    private CompletableFuture<ClientStateListResponse> nextPage;
+
+    /**
+     * @param blockchainHelper sends the requests
+     * @param prefix           namespace or address prefix, an empty string lists everything
+     * @param pageSize         entries per request
+     */
+    StateListIterator(BlockchainHelper blockchainHelper, String prefix, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size has to be positive");
+        }
+        this.blockchainHelper = blockchainHelper;
+        this.prefix = prefix;
+        this.pageSize = pageSize;
+        nextPage = blockchainHelper.listStatePage(prefix, "", pageSize, stateRoot);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (currentPage == null || !currentPage.hasNext()) {
+            if (nextPage == null) {
+                return false;
+            }
+            ClientStateListResponse response = awaitNextPage();
+            if (stateRoot.isEmpty()) {
+                stateRoot = response.getStateRoot();
+            }
+            currentPage = response.getEntriesList().iterator();
+
+            String next = response.getPaging().getNext();
+            if (next.isEmpty()) {
+                nextPage = null;
+            } else {
+                nextPage = blockchainHelper.listStatePage(prefix, next, pageSize, stateRoot);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public ClientStateListResponse.Entry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return currentPage.next();
+    }
+
+    private ClientStateListResponse awaitNextPage() {
+        try {
+            return nextPage.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the next page of " + prefix);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Listing state of " + prefix + " failed: "
+                    + e.getCause().getLocalizedMessage(), e.getCause());
+        }
+    }
+}
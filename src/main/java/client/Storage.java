@@ -7,6 +7,7 @@ import javax.crypto.SecretKey;
 import java.io.*;
 import java.security.*;
 import java.security.cert.CertificateException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -24,6 +25,8 @@ class Storage {
     private char[] keystorePassword;
     private String datafilePath;
     private SecretKey dataEncryptionKey;
+    private volatile KeyStore loadedKeystore; // Kept if loaded lazily to unwrap keys on demand
+    private static final char[] ENTRY_PASSWORD = {'x'};
 
     Storage(String _keystorePath, @Nonnull char[] _keystorePassword, String _datafilePath) {
         this.keystorePath = _keystorePath != null ? _keystorePath : DEFAULT_KEYSTORE_PATH;
@@ -34,12 +37,20 @@ class Storage {
 
     void saveData(Data data) {
         dataEncryptionKey = data.keys.get(DATA_ENCRYPTION_KEY_ALIAS);
-        saveKeystore(data.keys);
+        saveKeystore(data.keys, data.wrappedAliases);
         saveDataFile(data.data);
     }
 
     Data loadData() {
-        Map<String, SecretKey> keys = loadKeystore(keystorePath, keystorePassword);
+        return loadData(false);
+    }
+
+    /**
+     * @param lazy if set, the group keys are not unwrapped but put in the map with null as value
+     * @return data
+     */
+    Data loadData(boolean lazy) {
+        Map<String, SecretKey> keys = loadKeystore(keystorePath, keystorePassword, lazy);
         return new Data(keys, loadDataFile());
     }
 
@@ -102,48 +113,86 @@ class Storage {
         return ret;
     }
 
-    private void saveKeystore(Map<String, SecretKey> data) {
+    /**
+     * @param data           unwrapped keys by alias
+     * @param wrappedAliases aliases of keys that are still wrapped in the lazily loaded keystore. The loaded keystore
+     *                       is written again in that case, so these entries are kept in their encrypted form
+     */
+    private void saveKeystore(Map<String, SecretKey> data, Collection<String> wrappedAliases) {
         try {
-            KeyStore ks = KeyStore.getInstance(PKCS_12);
-            ks.load(null, keystorePassword);
-            // TODO add even more passwords?
-            KeyStore.PasswordProtection protParam = new KeyStore.PasswordProtection(new char[]{'x'});
-            data.forEach((groupName, key) -> {
-                KeyStore.SecretKeyEntry entry = new KeyStore.SecretKeyEntry(key);
-                try {
-                    ks.setEntry(groupName, entry, protParam);
-                } catch (KeyStoreException e) {
-                    e.printStackTrace();
+            KeyStore loaded = loadedKeystore;
+            boolean reuse = loaded != null && !wrappedAliases.isEmpty();
+            KeyStore ks;
+            if (reuse) {
+                ks = loaded;
+            } else {
+                ks = KeyStore.getInstance(PKCS_12);
+                ks.load(null, keystorePassword);
+            }
+            // loadKey unwraps from the same keystore
+            synchronized (ks) {
+                if (reuse) {
+                    // Drop the entries of groups that were removed
+                    for (String alias : Collections.list(ks.aliases())) {
+                        if (!data.containsKey(alias) && !wrappedAliases.contains(alias)
+                                && !DATA_ENCRYPTION_KEY_ALIAS.equals(alias)) {
+                            ks.deleteEntry(alias);
+                        }
+                    }
                 }
-            });
+                // TODO add even more passwords?
+                KeyStore.PasswordProtection protParam = new KeyStore.PasswordProtection(ENTRY_PASSWORD);
+                data.forEach((groupName, key) -> {
+                    KeyStore.SecretKeyEntry entry = new KeyStore.SecretKeyEntry(key);
+                    try {
+                        ks.setEntry(groupName, entry, protParam);
+                    } catch (KeyStoreException e) {
+                        e.printStackTrace();
+                    }
+                });
 
-            ks.setEntry(DATA_ENCRYPTION_KEY_ALIAS, new KeyStore.SecretKeyEntry(dataEncryptionKey), protParam);
-            //System.out.println("saved data enc key as: " + Base64.getEncoder().encodeToString(_dataEncryptionKey.getEncoded()));
-            FileOutputStream fos = new FileOutputStream(keystorePath);
-            ks.store(fos, keystorePassword);
+                ks.setEntry(DATA_ENCRYPTION_KEY_ALIAS, new KeyStore.SecretKeyEntry(dataEncryptionKey), protParam);
+                //System.out.println("saved data enc key as: " + Base64.getEncoder().encodeToString(_dataEncryptionKey.getEncoded()));
+                try (FileOutputStream fos = new FileOutputStream(keystorePath)) {
+                    ks.store(fos, keystorePassword);
+                }
+            }
         } catch (KeyStoreException | CertificateException | NoSuchAlgorithmException | IOException e) {
             //e.printStackTrace();
             throw new InternalError("Saving the keystore failed with exception: " + e.getLocalizedMessage());
         }
     }
 
-    private Map<String, SecretKey> loadKeystore(String path, char[] password) {
+    /**
+     * Load the keystore. If lazy is set, only the data encryption key is unwrapped, the other entries are only
+     * listed by their alias and can be unwrapped with loadKey later.
+     *
+     * @param path     path to the keystore
+     * @param password password for the keystore
+     * @param lazy     whether to skip unwrapping the group keys
+     * @return map of alias to key, the values are null for lazily loaded keys
+     */
+    private Map<String, SecretKey> loadKeystore(String path, char[] password, boolean lazy) {
         Map<String, SecretKey> ret = new HashMap<>();
-        try {
+        try (FileInputStream fis = new FileInputStream(path)) {
             KeyStore ks = KeyStore.getInstance(PKCS_12);
-            ks.load(new FileInputStream(path), password);
-            char[] pw = {'x'};
+            ks.load(fis, password);
             // TODO add even more passwords?
             //KeyStore.PasswordProtection protParam = new KeyStore.PasswordProtection(pw);
             List<String> groupNames = Collections.list(ks.aliases());
             for (String group : groupNames) {
+                if (lazy && !DATA_ENCRYPTION_KEY_ALIAS.equals(group)) {
+                    ret.put(group, null);
+                    continue;
+                }
                 try {
-                    SecretKey key = (SecretKey) ks.getKey(group, pw);
+                    SecretKey key = (SecretKey) ks.getKey(group, ENTRY_PASSWORD);
                     ret.put(group, key);
                 } catch (UnrecoverableEntryException e) {
                     e.printStackTrace();
                 }
             }
+            loadedKeystore = lazy ? ks : null;
         } catch (KeyStoreException | CertificateException | NoSuchAlgorithmException | IOException e) {
             e.printStackTrace();
             throw new InternalError("Loading KeyStore failed with error: " + e.getLocalizedMessage());
@@ -156,4 +205,29 @@ class Storage {
         //System.out.println("Loaded data enc key as: " + Base64.getEncoder().encodeToString(_dataEncryptionKey.getEncoded()));
         return ret;
     }
+
+    /**
+     * Unwrap a single key of a keystore that was loaded lazily.
+     *
+     * @param alias alias of the key
+     * @return the key or null if it is not in the keystore
+     */
+    SecretKey loadKey(String alias) {
+        KeyStore ks = loadedKeystore;
+        if (ks == null) {
+            return null;
+        }
+        synchronized (ks) {
+            try {
+                return (SecretKey) ks.getKey(alias, ENTRY_PASSWORD);
+            } catch (KeyStoreException | NoSuchAlgorithmException | UnrecoverableEntryException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+    }
+
+    SecretKey getDataEncryptionKey() {
+        return dataEncryptionKey;
+    }
 }
@@ -0,0 +1,222 @@
+package client;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import sawtooth.sdk.protobuf.Message;
+import sawtooth.sdk.protobuf.PingResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous request/response connection to the validator.
+ * Any thread can send requests, the socket itself is only used by the I/O thread of this class.
+ * Responses are matched to their requests by correlation ID, so many requests can be in flight at once.
+ * <p>
+ * The returned futures are completed on the I/O thread, dependent actions that do blocking calls
+ * on this connection have to run asynchronously. Requests without a response fail after
+ * BlockchainHelper.REQUEST_TIMEOUT_MS, so callers that gave up waiting do not leave them behind.
+ */
+class ValidatorConnection implements AutoCloseable {
+
+    private static final long POLL_TIMEOUT_MS = 1000;
+
+    // Expires the requests of all connections
+    private static final ScheduledThreadPoolExecutor EXPIRY_TIMER = createExpiryTimer();
+
+    private final ZContext context = new ZContext();
+    private final ZMQ.Socket socket;
+    private final Pipe wakeup;
+    private final Queue<Message> outgoing = new ConcurrentLinkedQueue<>();
+    private final Map<String, CompletableFuture<Message>> pending = new ConcurrentHashMap<>();
+    private final String correlationIdPrefix = UUID.randomUUID().toString().substring(0, 8) + "-";
+    private final AtomicLong nextCorrelationId = new AtomicLong();
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    // Set while a wakeup byte is in the pipe, so that a burst of requests writes to the pipe only once
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final Thread ioThread;
+
+    ValidatorConnection(String validatorURL) {
+        try {
+            wakeup = Pipe.open();
+            wakeup.source().configureBlocking(false);
+        } catch (IOException e) {
+            throw new InternalError("Could not open wakeup pipe: " + e.getLocalizedMessage());
+        }
+        socket = context.createSocket(ZMQ.DEALER);
+        socket.connect(validatorURL);
+        ioThread = new Thread(this::run, "ValidatorConnection");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /**
+     * Send a request to the validator.
+     *
+     * @param type    message type of the request
+     * @param content serialized request
+     * @return future of the response message, completed exceptionally if the connection is closed first
+     */
+    CompletableFuture<Message> request(Message.MessageType type, ByteString content) {
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        if (!running.get()) {
+            future.completeExceptionally(new IllegalStateException("Connection is closed"));
+            return future;
+        }
+        String correlationId = correlationIdPrefix + nextCorrelationId.incrementAndGet();
+        pending.put(correlationId, future);
+        if (!running.get() && pending.remove(correlationId) != null) {
+            // Closed concurrently, the pending requests might have been failed already
+            future.completeExceptionally(new IllegalStateException("Connection is closed"));
+            return future;
+        }
+        ScheduledFuture<?> expiry = EXPIRY_TIMER.schedule(() -> {
+            if (pending.remove(correlationId, future)) {
+                future.completeExceptionally(new TimeoutException("No response to " + type + " " + correlationId));
+            }
+        }, BlockchainHelper.REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        future.whenComplete((response, error) -> {
+            expiry.cancel(false);
+            pending.remove(correlationId, future);
+        });
+        outgoing.add(Message.newBuilder()
+                .setMessageType(type)
+                .setCorrelationId(correlationId)
+                .setContent(content)
+                .build());
+        wake();
+        return future;
+    }
+
+    /**
+     * @return number of requests waiting for their response
+     */
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    private void wake() {
+        if (!wakeupPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            wakeup.sink().write(ByteBuffer.wrap(new byte[]{0}));
+        } catch (IOException e) {
+            // The pipe is closed, the I/O thread is stopping
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor createExpiryTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "ValidatorConnection-expiry");
+            t.setDaemon(true);
+            return t;
+        });
+        // Most requests are answered, their cancelled expiries should not pile up in the queue
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    private void run() {
+        ZMQ.Poller poller = context.createPoller(2);
+        poller.register(socket, ZMQ.Poller.POLLIN);
+        poller.register(wakeup.source(), ZMQ.Poller.POLLIN);
+        ByteBuffer drain = ByteBuffer.allocate(64);
+
+        while (running.get()) {
+            poller.poll(POLL_TIMEOUT_MS);
+
+            if (poller.pollin(1)) {
+                try {
+                    while (wakeup.source().read(drain) > 0) {
+                        drain.clear();
+                    }
+                } catch (IOException e) {
+                    break;
+                }
+                // Only clear the flag once the pipe is empty, a byte written after this stays in the pipe.
+                // A request whose sender saw the flag still set is already queued and sent below.
+                wakeupPending.set(false);
+            }
+
+            Message toSend;
+            while ((toSend = outgoing.poll()) != null) {
+                socket.send(toSend.toByteArray());
+            }
+
+            byte[] recv;
+            while ((recv = socket.recv(ZMQ.DONTWAIT)) != null) {
+                handleResponse(recv);
+            }
+        }
+
+        poller.close();
+        socket.close();
+        failPending();
+    }
+
+    private void handleResponse(byte[] recv) {
+        Message message;
+        try {
+            message = Message.parseFrom(recv);
+        } catch (InvalidProtocolBufferException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (message.getMessageType() == Message.MessageType.PING_REQUEST) {
+            // The validator drops connections that do not answer its pings
+            socket.send(Message.newBuilder()
+                    .setMessageType(Message.MessageType.PING_RESPONSE)
+                    .setCorrelationId(message.getCorrelationId())
+                    .setContent(PingResponse.getDefaultInstance().toByteString())
+                    .build()
+                    .toByteArray());
+            return;
+        }
+        CompletableFuture<Message> future = pending.remove(message.getCorrelationId());
+        if (future == null) {
+            System.out.println("[ValidatorConnection] Received response for unknown request: " + message.getMessageType());
+            return;
+        }
+        future.complete(message);
+    }
+
+    private void failPending() {
+        for (String correlationId : pending.keySet()) {
+            CompletableFuture<Message> future = pending.remove(correlationId);
+            if (future != null) {
+                future.completeExceptionally(new IllegalStateException("Connection was closed"));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!running.compareAndSet(true, false)) {
+            return;
+        }
+        wake();
+        try {
+            ioThread.join(POLL_TIMEOUT_MS * 2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            wakeup.sink().close();
+            wakeup.source().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        failPending();
+        context.close();
+    }
+}
@@ -0,0 +1,74 @@
+package txprocessor;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import sawtooth.sdk.processor.Context;
+import sawtooth.sdk.processor.exceptions.InternalError;
+import sawtooth.sdk.processor.exceptions.InvalidTransactionException;
+
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * Reads the entries the BlockInfo transaction family keeps in state, to get a time that is the same on all
+ * validators. The validator injects the info of the previous block at the start of each block if
+ * sawtooth.validator.batch_injectors contains block_info.
+ * <p>
+ * Only the fields used here are decoded from the BlockInfoConfig and BlockInfo messages of block_info.proto.
+ */
+class BlockInfo {
+
+    static final String NAMESPACE = "00b10c";
+    static final String CONFIG_ADDRESS = NAMESPACE + "01" + String.format("%062d", 0);
+
+    // BlockInfoConfig.latest_block
+    private static final int CONFIG_LATEST_BLOCK_FIELD = 1;
+    // BlockInfo.timestamp, in seconds since the epoch
+    private static final int INFO_TIMESTAMP_FIELD = 5;
+
+    private BlockInfo() {
+    }
+
+    static String blockAddress(long blockNum) {
+        return NAMESPACE + "00" + String.format("%062x", blockNum);
+    }
+
+    /**
+     * @param context context of a transaction that has the BlockInfo namespace as input
+     * @return timestamp of the latest block in milliseconds since the epoch
+     * @throws InvalidTransactionException if there is no BlockInfo in state
+     * @throws InternalError               InternalError
+     */
+    static long latestBlockTimeMillis(Context context) throws InvalidTransactionException, InternalError {
+        ByteString config = context.getState(Collections.singletonList(CONFIG_ADDRESS)).get(CONFIG_ADDRESS);
+        if (config == null || config.isEmpty()) {
+            throw new InvalidTransactionException("No BlockInfo in state, is the block_info batch injector enabled?");
+        }
+        long latestBlock = readUInt64(config, CONFIG_LATEST_BLOCK_FIELD);
+
+        String address = blockAddress(latestBlock);
+        ByteString info = context.getState(Collections.singletonList(address)).get(address);
+        if (info == null || info.isEmpty()) {
+            throw new InvalidTransactionException("No BlockInfo for block " + latestBlock);
+        }
+        return readUInt64(info, INFO_TIMESTAMP_FIELD) * 1000;
+    }
+
+    private static long readUInt64(ByteString message, int field) throws InternalError {
+        try {
+            CodedInputStream in = message.newCodedInput();
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                if (WireFormat.getTagFieldNumber(tag) == field
+                        && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_VARINT) {
+                    return in.readUInt64();
+                }
+                in.skipField(tag);
+            }
+            return 0;
+        } catch (IOException e) {
+            throw new InternalError("Malformed BlockInfo entry: " + e.getMessage());
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package txprocessor;
 
+import client.CSVStringsMessage;
+import client.GroupHistory;
 import client.SawtoothUtils;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 import com.google.protobuf.ByteString;
 import joingroup.JoinGroupRequest;
 import sawtooth.sdk.processor.Context;
+import sawtooth.sdk.processor.ContextFuture;
 import sawtooth.sdk.processor.TransactionHandler;
 import sawtooth.sdk.processor.Utils;
 import sawtooth.sdk.processor.exceptions.InternalError;
@@ -19,6 +22,8 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class CSVStringsHandler implements TransactionHandler {
     private final String namespace = "2f9d35";
+    // Bounds the work of a single compaction transaction, further pages are handled by the next one
+    private static final int MAX_COMPACTION_PAGES = 16;
 
     CSVStringsHandler() {
         // Convention
@@ -100,15 +105,27 @@ public class CSVStringsHandler implements TransactionHandler {
         }
 
 
-        String[] strings = payloadStr.split(",");
-
-        if (strings.length < 2) {
+        CSVStringsMessage csvMessage = CSVStringsMessage.parse(payloadStr);
+        if (csvMessage == null) {
             throw new InvalidTransactionException("Not enough values!");
         }
 
-        // The order in the CSV String is <group>,<encrypted message>
-        String group = strings[0];
-        String message = strings[1];
+        // The order in the CSV String is <group>,<encrypted message>[,<options>]
+        String group = csvMessage.getGroup();
+
+        if (csvMessage.hasOption(CSVStringsMessage.OPTION_COMPACT)) {
+            // The result of apply must not depend on the clock of the TP, and the time in the payload is chosen by
+            // the sender. Bound it by the time of the latest block, so that nobody can delete messages early.
+            long now = Math.min(parseTime(csvMessage, CSVStringsMessage.OPTION_COMPACT),
+                    BlockInfo.latestBlockTimeMillis(context));
+            for (String g : new LinkedHashSet<>(csvMessage.getGroups())) {
+                compactHistory(g, now, context);
+            }
+            return;
+        }
+        Long expiry = csvMessage.hasOption(CSVStringsMessage.OPTION_EXPIRES)
+                ? parseTime(csvMessage, CSVStringsMessage.OPTION_EXPIRES)
+                : null;
 
         //print("Inputs: " + header.getInputsList().stream().reduce("", (a, c) -> a += c + ", "));
 
@@ -119,8 +136,8 @@ public class CSVStringsHandler implements TransactionHandler {
         String output = header.getOutputs(0);
         if (namespace.equals(output)) {
             // Wildcard output, calculate an address in the namespace
-            // Use the message bytes as identifier for the remaining bytes
-            address = SawtoothUtils.namespaceHashAddress(namespace, message);
+            // Use the message bytes (or the payload for blob references) as identifier for the remaining bytes
+            address = csvMessage.defaultAddress(namespace);
             //print("Address calculated as: " + address + "  (size=" + address.length() + ")");
         } else {
             // Concrete output, use that
@@ -130,29 +147,233 @@ public class CSVStringsHandler implements TransactionHandler {
         }
         //print("Using address: " + address);
 
+        if (csvMessage.hasOption(CSVStringsMessage.OPTION_EPHEMERAL)) {
+            // Ephemeral messages are only delivered to the subscribers, state and history stay untouched
+            if (csvMessage.isMultiGroup()) {
+                fireMultiGroupEvents(csvMessage, address, context);
+            } else {
+                fireEvent(group, address, tpProcessRequest.getPayload(), context);
+            }
+            return;
+        }
+
         // Prepare the message to be set
         // Has the same format has the input: <group>,<encrypted message> -> forward the payload
         // The data is given as ByteString and stores in Base64 (Sawtooth specification)
+        // The write, the history update and the events touch different addresses, so they are sent back to back
+        // and only the results are waited for at the end
         ByteString writeToState = tpProcessRequest.getPayload();
-        if (!TPUtils.writeToAddress(writeToState.toStringUtf8(), address, context)) {
-            throw new InvalidTransactionException("Set state error");
-        }
+        ContextFuture<Boolean> written = TPUtils.writeToAddressAsync(writeToState.toStringUtf8(), address, context);
 
         //String signerPub = header.getSignerPublicKey();
         //print("signer Public key: " + signerPub);
 
+        ContextFuture<Boolean> historyWritten =
+                appendToHistory(csvMessage.getGroups(), GroupHistory.entry(address, expiry), context);
+
+        if (csvMessage.isMultiGroup()) {
+            fireMultiGroupEvents(csvMessage, address, context);
+        } else {
+            fireEvent(group, address, tpProcessRequest.getPayload(), context);
+        }
+
+        if (!written.get()) {
+            throw new InvalidTransactionException("Set state error");
+        }
+        if (!historyWritten.get()) {
+            throw new InvalidTransactionException("Unable to update the group history");
+        }
+    }
+
+    private void fireEvent(String group, String address, ByteString data, Context context) {
         // Fire event with the message
         print("firing event...");
         Map.Entry<String, String> e = new AbstractMap.SimpleEntry<>("address", address);
         Collection<Map.Entry<String, String>> collection = Arrays.asList(e);
         try {
-            context.addEvent(group, collection, tpProcessRequest.getPayload());
+            // Checked by the transaction processor after apply
+            context.addEventAsync(group, collection, data);
             //print("Event triggered");
         } catch (InternalError internalError) {
             internalError.printStackTrace();
         }
     }
 
+    /**
+     * Append the address of a message to the history of each of its groups, see client.GroupHistory for the layout.
+     *
+     * @param groups  groups of the message
+     * @param entry   history entry with the address the message was written to
+     * @param context context
+     * @return future that is true if all history entries were written
+     * @throws InvalidTransactionException if a history head is malformed
+     * @throws InternalError               InternalError
+     */
+    private ContextFuture<Boolean> appendToHistory(List<String> groups, String entry, Context context)
+            throws InvalidTransactionException, InternalError {
+        Map<String, String> heads = new LinkedHashMap<>(); // group -> head address
+        for (String group : groups) {
+            heads.put(group, GroupHistory.headAddress(namespace, group));
+        }
+        Map<String, ByteString> current = context.getState(heads.values());
+
+        List<Map.Entry<String, ByteString>> updates = new ArrayList<>();
+        for (Map.Entry<String, String> head : heads.entrySet()) {
+            ByteString value = current.get(head.getValue());
+            GroupHistory history;
+            try {
+                history = GroupHistory.parse(value == null ? "" : value.toStringUtf8());
+            } catch (IllegalArgumentException e) {
+                throw new InvalidTransactionException(e.getMessage());
+            }
+            GroupHistory appended = history.append(entry);
+            if (appended.getOpenPage().isEmpty()) {
+                // The open page is full, seal it at its own address
+                List<String> sealed = new ArrayList<>(history.getOpenPage());
+                sealed.add(entry);
+                updates.add(new AbstractMap.SimpleEntry<>(
+                        GroupHistory.pageAddress(namespace, head.getKey(), history.getSealedPages()),
+                        ByteString.copyFromUtf8(CSVStringsMessage.joinList(sealed))));
+            }
+            updates.add(new AbstractMap.SimpleEntry<>(head.getValue(), ByteString.copyFromUtf8(appended.toString())));
+        }
+        ContextFuture<Collection<String>> set = context.setStateAsync(updates);
+        return () -> set.get().size() == updates.size();
+    }
+
+    private long parseTime(CSVStringsMessage csvMessage, String option) throws InvalidTransactionException {
+        try {
+            return Long.parseLong(csvMessage.getOption(option));
+        } catch (NumberFormatException e) {
+            throw new InvalidTransactionException("Invalid value for " + option + ": " + csvMessage.getOption(option));
+        }
+    }
+
+    /**
+     * Delete the messages of a group that expired before the given time and mark their history entries as compacted.
+     * Starts at the first sealed page that still has expiring entries and handles at most MAX_COMPACTION_PAGES
+     * sealed pages, plus the open page.
+     *
+     * @param group   group
+     * @param now     time in milliseconds since the epoch
+     * @param context context
+     * @throws InvalidTransactionException if the history is malformed or cannot be written
+     * @throws InternalError               InternalError
+     */
+    private void compactHistory(String group, long now, Context context) throws InvalidTransactionException, InternalError {
+        String headAddress = GroupHistory.headAddress(namespace, group);
+        ByteString headValue = context.getState(Collections.singletonList(headAddress)).get(headAddress);
+        GroupHistory history;
+        try {
+            history = GroupHistory.parse(headValue == null ? "" : headValue.toStringUtf8());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidTransactionException(e.getMessage());
+        }
+
+        long firstPage = history.getCompactedPages();
+        long endPage = Math.min(history.getSealedPages(), firstPage + MAX_COMPACTION_PAGES);
+        List<String> pageAddresses = new ArrayList<>();
+        for (long page = firstPage; page < endPage; page++) {
+            pageAddresses.add(GroupHistory.pageAddress(namespace, group, page));
+        }
+        Map<String, ByteString> pages = pageAddresses.isEmpty()
+                ? Collections.emptyMap()
+                : context.getState(pageAddresses);
+
+        Set<String> toDelete = new LinkedHashSet<>();
+        List<Map.Entry<String, ByteString>> updates = new ArrayList<>();
+        long compactedPages = firstPage;
+        boolean contiguous = true;
+        for (String pageAddress : pageAddresses) {
+            ByteString value = pages.get(pageAddress);
+            List<String> original = GroupHistory.parsePage(value == null ? "" : value.toStringUtf8());
+            List<String> entries = new ArrayList<>(original);
+            boolean expiringLeft = compactEntries(entries, now, toDelete);
+            if (!entries.equals(original)) {
+                updates.add(new AbstractMap.SimpleEntry<>(pageAddress,
+                        ByteString.copyFromUtf8(CSVStringsMessage.joinList(entries))));
+            }
+            if (contiguous && !expiringLeft) {
+                compactedPages++;
+            } else {
+                contiguous = false;
+            }
+        }
+        List<String> openPage = new ArrayList<>(history.getOpenPage());
+        compactEntries(openPage, now, toDelete);
+        updates.add(new AbstractMap.SimpleEntry<>(headAddress,
+                ByteString.copyFromUtf8(history.compacted(openPage, compactedPages).toString())));
+
+        print("Compacting history of " + group + ": deleting " + toDelete.size() + " messages");
+        if (!toDelete.isEmpty()) {
+            context.deleteState(toDelete);
+        }
+        context.setState(updates);
+    }
+
+    /**
+     * Replace the expired entries with GroupHistory.COMPACTED and collect their addresses
+     *
+     * @return whether entries are left that expire later
+     */
+    private boolean compactEntries(List<String> entries, long now, Set<String> toDelete) {
+        boolean expiringLeft = false;
+        for (int i = 0; i < entries.size(); i++) {
+            String entry = entries.get(i);
+            if (GroupHistory.isCompacted(entry)) {
+                continue;
+            }
+            if (GroupHistory.isExpired(entry, now)) {
+                toDelete.add(GroupHistory.addressOf(entry));
+                entries.set(i, GroupHistory.COMPACTED);
+            } else if (GroupHistory.expiryOf(entry) != Long.MAX_VALUE) {
+                expiringLeft = true;
+            }
+        }
+        return expiringLeft;
+    }
+
+    /**
+     * A message for multiple groups is stored once, each group gets an event with the content key wrapped
+     * for that group and the address of the stored ciphertext instead of the ciphertext itself.
+     * Ephemeral messages are not stored, so their events carry the ciphertext.
+     *
+     * @param csvMessage message with the groups and wrapped keys
+     * @param address    address the message was written to, if it is not ephemeral
+     * @param context    context
+     * @throws InvalidTransactionException if the number of wrapped keys does not match the groups
+     */
+    private void fireMultiGroupEvents(CSVStringsMessage csvMessage, String address, Context context)
+            throws InvalidTransactionException {
+        List<String> groups = csvMessage.getGroups();
+        String keys = csvMessage.getOption(CSVStringsMessage.OPTION_WRAPPED_KEYS);
+        List<String> wrappedKeys = keys == null ? Collections.emptyList() : CSVStringsMessage.splitList(keys);
+        if (wrappedKeys.size() != groups.size()) {
+            throw new InvalidTransactionException("Expected " + groups.size() + " wrapped keys, got " + wrappedKeys.size());
+        }
+
+        boolean ephemeral = csvMessage.hasOption(CSVStringsMessage.OPTION_EPHEMERAL);
+        print("firing " + groups.size() + " events...");
+        Collection<Map.Entry<String, String>> attributes =
+                Collections.singletonList(new AbstractMap.SimpleEntry<>("address", address));
+        for (int i = 0; i < groups.size(); i++) {
+            CSVStringsMessage event;
+            if (ephemeral) {
+                event = new CSVStringsMessage(groups.get(i), csvMessage.getMessage())
+                        .setOption(CSVStringsMessage.OPTION_EPHEMERAL, "1");
+            } else {
+                event = new CSVStringsMessage(groups.get(i), "")
+                        .setOption(CSVStringsMessage.OPTION_REFERENCE, address);
+            }
+            event.setOption(CSVStringsMessage.OPTION_WRAPPED_KEY, wrappedKeys.get(i));
+            try {
+                context.addEventAsync(groups.get(i), attributes, ByteString.copyFromUtf8(event.toString()));
+            } catch (InternalError internalError) {
+                internalError.printStackTrace();
+            }
+        }
+    }
+
     private void handleJoinRequest(TpProcessRequest tpProcessRequest, Context context, JoinGroupRequest request) {
 
     }
@@ -7,6 +7,7 @@ import com.google.protobuf.ByteString;
 import keyexchange.KeyExchangeReceipt;
 import keyexchange.ReceiptType;
 import sawtooth.sdk.processor.Context;
+import sawtooth.sdk.processor.ContextFuture;
 import sawtooth.sdk.processor.TransactionHandler;
 import sawtooth.sdk.processor.Utils;
 import sawtooth.sdk.processor.exceptions.InternalError;
@@ -111,9 +112,8 @@ public class KeyExReceiptHandler implements TransactionHandler {
         //print("toHash for address: " + toHash);
         print("Calculated Address: " + address);
 
-        if (!TPUtils.writeToAddress(receipt.toString(), address, state)) {
-            throw new InvalidTransactionException("Unable to write receipt to state");
-        }
+        // The group entry is read while the receipt is written, the addresses differ
+        ContextFuture<Boolean> written = TPUtils.writeToAddressAsync(receipt.toString(), address, state);
 
         // Update the entry that has the keys which are in the given group
         if (receipt.getReceiptType() == ReceiptType.JOIN_GROUP) {
@@ -140,6 +140,10 @@ public class KeyExReceiptHandler implements TransactionHandler {
                 throw new InvalidTransactionException("Unable to update group member entry");
             }
         }
+
+        if (!written.get()) {
+            throw new InvalidTransactionException("Unable to write receipt to state");
+        }
     }
 }
 
@@ -9,12 +9,18 @@ public class KeyExReceiptTP {
         if (args != null && args.length > 0) {
             url = args[0];
         }
+        // Transactions processed in parallel, the handler keeps no state between transactions
+        int workers = 1;
+        if (args != null && args.length > 1) {
+            workers = Integer.parseInt(args[1]);
+        }
         // Connect the transaction processor to the validator
-        TransactionProcessor tp = new TransactionProcessor(url);
+        TransactionProcessor tp = new TransactionProcessor(url, workers);
+        // Send the writes of a transaction in one request once it is applied
+        tp.setBufferWrites(true);
         // The handler implements the actual chaincode
         tp.addHandler(new KeyExReceiptHandler());
-        Thread t = new Thread(tp);
-        t.start();
+        tp.start();
     }
 
 }
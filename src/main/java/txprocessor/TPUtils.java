@@ -2,6 +2,7 @@ package txprocessor;
 
 import com.google.protobuf.ByteString;
 import sawtooth.sdk.processor.Context;
+import sawtooth.sdk.processor.ContextFuture;
 import sawtooth.sdk.processor.exceptions.InternalError;
 import sawtooth.sdk.processor.exceptions.InvalidTransactionException;
 
@@ -30,6 +31,21 @@ public class TPUtils {
         return false;
     }
 
+    /**
+     * Send the write without waiting for the response, so that further requests can be sent in the meantime.
+     * Unlike writeToAddress, errors are thrown by get.
+     *
+     * @return future that is true if the address was set
+     */
+    public static ContextFuture<Boolean> writeToAddressAsync(String toWrite, String address, Context state)
+            throws InternalError, InvalidTransactionException {
+        print("Writing '" + toWrite + "' to " + address);
+        ByteString byteString = ByteString.copyFrom(toWrite.getBytes(UTF_8));
+        Map.Entry<String, ByteString> entry = new AbstractMap.SimpleEntry<>(address, byteString);
+        ContextFuture<Collection<String>> set = state.setStateAsync(Collections.singletonList(entry));
+        return () -> !set.get().isEmpty();
+    }
+
     // TODO WIP
     public static void checkStateAtAddress(String address, Context context) {
         Collection<String> checkAddr = new ArrayList<>();
@@ -0,0 +1,94 @@
+package client;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class CSVStringsMessageTest {
+
+    private static final String NAMESPACE = BlockchainHelper.CSVSTRINGS_NAMESPACE;
+
+    @Test
+    public void testRoundTrip() {
+        String csv = "group,Y2lwaGVydGV4dA==";
+        CSVStringsMessage parsed = CSVStringsMessage.parse(csv);
+        assertNotNull(parsed);
+        assertEquals("group", parsed.getGroup());
+        assertEquals("Y2lwaGVydGV4dA==", parsed.getMessage());
+        assertFalse(parsed.isMultiGroup());
+        assertEquals(csv, parsed.toString());
+
+        CSVStringsMessage message = new CSVStringsMessage(Arrays.asList("a", "b"), "Y2lwaGVydGV4dA==")
+                .setOption(CSVStringsMessage.OPTION_WRAPPED_KEYS, "k1|k2")
+                .setOption(CSVStringsMessage.OPTION_EXPIRES, "1000");
+        CSVStringsMessage reparsed = CSVStringsMessage.parse(message.toString());
+        assertNotNull(reparsed);
+        assertEquals(message.toString(), reparsed.toString());
+        assertEquals(Arrays.asList("a", "b"), reparsed.getGroups());
+        assertTrue(reparsed.isMultiGroup());
+        assertEquals(Arrays.asList("k1", "k2"), CSVStringsMessage.splitList(reparsed.getOption(CSVStringsMessage.OPTION_WRAPPED_KEYS)));
+        assertEquals("1000", reparsed.getOption(CSVStringsMessage.OPTION_EXPIRES));
+    }
+
+    @Test
+    public void testEmptyFields() {
+        assertNull(CSVStringsMessage.parse(null));
+        assertNull(CSVStringsMessage.parse("group"));
+        assertNull(CSVStringsMessage.parse(",message"));
+
+        CSVStringsMessage emptyMessage = CSVStringsMessage.parse("group,");
+        assertNotNull(emptyMessage);
+        assertEquals("", emptyMessage.getMessage());
+        assertEquals("group,", emptyMessage.toString());
+
+        // An empty options field is the same as no options
+        CSVStringsMessage emptyOptions = CSVStringsMessage.parse("group,msg,");
+        assertNotNull(emptyOptions);
+        assertFalse(emptyOptions.hasOption(CSVStringsMessage.OPTION_EPHEMERAL));
+        assertEquals("group,msg", emptyOptions.toString());
+
+        assertEquals("", new CSVStringsMessage("group", null).getMessage());
+    }
+
+    @Test
+    public void testOptionWithoutValue() {
+        CSVStringsMessage parsed = CSVStringsMessage.parse("group,msg,ephemeral;expires=5");
+        assertNotNull(parsed);
+        assertTrue(parsed.hasOption(CSVStringsMessage.OPTION_EPHEMERAL));
+        assertEquals("", parsed.getOption(CSVStringsMessage.OPTION_EPHEMERAL));
+        assertEquals("5", parsed.getOption(CSVStringsMessage.OPTION_EXPIRES));
+        assertFalse(parsed.hasOption(CSVStringsMessage.OPTION_COMPACT));
+        assertEquals("group,msg,ephemeral=;expires=5", parsed.toString());
+
+        // A value may contain '=' itself
+        CSVStringsMessage withEquals = CSVStringsMessage.parse("group,msg,key=abc==");
+        assertNotNull(withEquals);
+        assertEquals("abc==", withEquals.getOption(CSVStringsMessage.OPTION_WRAPPED_KEY));
+    }
+
+    @Test
+    public void testDefaultAddress() {
+        CSVStringsMessage inline = new CSVStringsMessage("group", "Y2lwaGVydGV4dA==");
+        String address = inline.defaultAddress(NAMESPACE);
+        assertEquals(70, address.length());
+        assertTrue(address.startsWith(NAMESPACE));
+        // Inline messages are addressed by the ciphertext, so other groups or options do not move them
+        assertEquals(address, new CSVStringsMessage(Collections.singletonList("other"), "Y2lwaGVydGV4dA==")
+                .setOption(CSVStringsMessage.OPTION_EXPIRES, "1000")
+                .defaultAddress(NAMESPACE));
+
+        // Blob messages have no ciphertext and are addressed by the whole payload
+        CSVStringsMessage blob = new CSVStringsMessage("group", "")
+                .setOption(CSVStringsMessage.OPTION_BLOB, "abcd")
+                .setOption(CSVStringsMessage.OPTION_SIZE, "10");
+        CSVStringsMessage otherBlob = new CSVStringsMessage("group", "")
+                .setOption(CSVStringsMessage.OPTION_BLOB, "ef01")
+                .setOption(CSVStringsMessage.OPTION_SIZE, "10");
+        assertEquals(SawtoothUtils.namespaceHashAddress(NAMESPACE, blob.toString()), blob.defaultAddress(NAMESPACE));
+        assertNotEquals(blob.defaultAddress(NAMESPACE), otherBlob.defaultAddress(NAMESPACE));
+        assertNotEquals(address, blob.defaultAddress(NAMESPACE));
+    }
+}
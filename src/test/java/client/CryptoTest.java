@@ -2,9 +2,14 @@ package client;
 
 import org.junit.Test;
 
+import javax.crypto.SecretKey;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
+import static client.Storage.DEFAULT_KEYSTORE_PATH;
 import static org.junit.Assert.*;
 
 /**
@@ -22,6 +27,7 @@ public class CryptoTest {
         String dec = c1.decrypt(enc, "test");
 
         assertEquals(msg, dec);
+        c1.flush();
         c1 = null;
         // Load the keystore of c1 and do the same again
         Crypto c2 = new Crypto(null, "password".toCharArray(), false);
@@ -51,6 +57,48 @@ public class CryptoTest {
         assertEquals(msg, dec);
     }
 
+    @Test
+    public void testAddGroups() throws GeneralSecurityException {
+        Crypto c1 = new Crypto(null, "jsa".toCharArray(), true);
+        Crypto c2 = new Crypto(null, "jsa".toCharArray(), true);
+        Map<String, String> groups = new HashMap<>();
+        for (int i = 0; i < 50; i++) {
+            c1.createGroup("group" + i);
+            groups.put("group" + i, c1.getKeyForGroup("group" + i));
+        }
+        c2.addGroups(groups);
+        assertEquals(50, c2.getGroupNames().size());
+        assertEquals("testmessage", c2.decrypt(c1.encrypt("testmessage", "group3"), "group3"));
+
+        // Nothing is added if one of the keys is invalid
+        Crypto c3 = new Crypto(null, "jsa".toCharArray(), true);
+        groups.put("invalid", "AAAA");
+        try {
+            c3.addGroups(groups);
+            fail("Invalid key was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertTrue(c3.getGroupNames().isEmpty());
+    }
+
+    @Test
+    public void testMultiGroupEncryption() throws GeneralSecurityException {
+        Crypto c1 = new Crypto(null, "jsa".toCharArray(), true);
+        c1.createGroup("a");
+        c1.createGroup("b");
+        SecretKey contentKey = Crypto.generateSecretKey();
+        CSVStringsMessage message = new CSVStringsMessage(Arrays.asList("a", "b"), Crypto.encrypt("testmessage", contentKey))
+                .setOption(CSVStringsMessage.OPTION_WRAPPED_KEYS,
+                        c1.wrapKey(contentKey, "a") + CSVStringsMessage.LIST_SEPARATOR + c1.wrapKey(contentKey, "b"));
+
+        CSVStringsMessage parsed = CSVStringsMessage.parse(message.toString());
+        assertNotNull(parsed);
+        assertTrue(parsed.isMultiGroup());
+        assertEquals(Arrays.asList("a", "b"), parsed.getGroups());
+        String wrappedForB = CSVStringsMessage.splitList(parsed.getOption(CSVStringsMessage.OPTION_WRAPPED_KEYS)).get(1);
+        assertEquals("testmessage", Crypto.decrypt(parsed.getMessage(), c1.unwrapKey(wrappedForB, "b")));
+    }
+
     @Test
     public void testEncryptionDecryption() throws GeneralSecurityException, IOException {
         Crypto c1 = new Crypto(null, "jsa".toCharArray(), true);
@@ -63,6 +111,62 @@ public class CryptoTest {
         assertEquals(msg, dec);
     }
 
+    @Test
+    public void testCoalescedSave() {
+        Crypto c1 = new Crypto(null, "password".toCharArray(), true);
+        for (int i = 0; i < 100; i++) {
+            c1.createGroup("group" + i);
+        }
+        c1.flush();
+
+        Crypto c2 = new Crypto(null, "password".toCharArray(), false);
+        assertEquals(100, c2.getGroupNames().size());
+        assertEquals(c1.getKeyForGroup("group42"), c2.getKeyForGroup("group42"));
+    }
+
+    @Test
+    public void testLazyLoading() throws GeneralSecurityException {
+        final int groupCount = 20;
+        Crypto c1 = new Crypto(null, "password".toCharArray(), true);
+        for (int i = 0; i < groupCount; i++) {
+            c1.createGroup("group" + i);
+        }
+        c1.flush();
+        String enc = c1.encrypt("testmessage", "group7");
+
+        Crypto lazy = new Crypto(null, DEFAULT_KEYSTORE_PATH, "password".toCharArray(), null, false, true);
+        assertEquals(groupCount, lazy.getGroupNames().size());
+        assertEquals(groupCount, lazy.getUnloadedGroupNames().size());
+
+        assertTrue(lazy.hasKeyForGroup("group7"));
+        assertEquals("testmessage", lazy.decrypt(enc, "group7"));
+        assertEquals(c1.getKeyForGroup("group5"), lazy.getKeyForGroup("group5"));
+        assertEquals(groupCount - 2, lazy.getUnloadedGroupNames().size());
+    }
+
+    @Test
+    public void testSaveAfterLazyLoadKeepsWrappedKeys() {
+        final int groupCount = 20;
+        Crypto c1 = new Crypto(null, "password".toCharArray(), true);
+        for (int i = 0; i < groupCount; i++) {
+            c1.createGroup("group" + i);
+        }
+        c1.flush();
+
+        Crypto lazy = new Crypto(null, DEFAULT_KEYSTORE_PATH, "password".toCharArray(), null, false, true);
+        lazy.createGroup("new");
+        lazy.removeGroup("group3");
+        lazy.flush();
+        // Saving must not unwrap the keys that were not used
+        assertEquals(groupCount - 1, lazy.getUnloadedGroupNames().size());
+
+        Crypto reloaded = new Crypto(null, DEFAULT_KEYSTORE_PATH, "password".toCharArray(), null, false, false);
+        assertEquals(groupCount, reloaded.getGroupNames().size());
+        assertFalse(reloaded.hasKeyForGroup("group3"));
+        assertEquals(lazy.getKeyForGroup("new"), reloaded.getKeyForGroup("new"));
+        assertEquals(c1.getKeyForGroup("group12"), reloaded.getKeyForGroup("group12"));
+    }
+
     @Test
     public void testCurveKeyStorage() {
         HyperZMQ h = new HyperZMQ("test", "teststore.jks", "password", null, true);
@@ -72,6 +176,7 @@ public class CryptoTest {
 
         assertNotNull(h.getKeypair("server"));
         assertNotNull(h.getKeypair("server"));
+        h.flushKeyStore();
 
         HyperZMQ h2 = new HyperZMQ("test2", "teststore.jks", "password", null, false);
         assertNotNull(h2.getKeypair("client"));
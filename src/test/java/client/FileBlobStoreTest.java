@@ -0,0 +1,36 @@
+package client;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class FileBlobStoreTest {
+
+    @Test
+    public void testPutGet() throws IOException {
+        FileBlobStore store = new FileBlobStore(Files.createTempDirectory("blobs").toString());
+        byte[] data = "some large ciphertext".getBytes(UTF_8);
+
+        String hash = store.put(data);
+        Assert.assertEquals(SawtoothUtils.hash(data), hash);
+        Assert.assertEquals(hash, store.put(data));
+        Assert.assertArrayEquals(data, store.get(hash));
+        Assert.assertNull(store.get(SawtoothUtils.hash("missing")));
+    }
+
+    @Test
+    public void testMalformedHash() throws IOException {
+        FileBlobStore store = new FileBlobStore(Files.createTempDirectory("blobs").toString());
+        for (String hash : new String[]{"", "../../etc/passwd", SawtoothUtils.hash("x").toUpperCase()}) {
+            try {
+                store.get(hash);
+                Assert.fail("Malformed hash was accepted: " + hash);
+            } catch (IOException expected) {
+            }
+        }
+    }
+}
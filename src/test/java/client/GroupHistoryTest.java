@@ -0,0 +1,47 @@
+package client;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GroupHistoryTest {
+
+    @Test
+    public void testAppendSealsFullPages() {
+        GroupHistory history = GroupHistory.parse("");
+        Assert.assertEquals(0, history.getCount());
+
+        for (int i = 0; i < GroupHistory.PAGE_SIZE - 1; i++) {
+            history = history.append("addr" + i);
+        }
+        Assert.assertEquals(GroupHistory.PAGE_SIZE - 1, history.getOpenPage().size());
+        Assert.assertEquals(0, history.getSealedPages());
+
+        history = history.append("last");
+        Assert.assertTrue(history.getOpenPage().isEmpty());
+        Assert.assertEquals(1, history.getSealedPages());
+
+        history = history.append("next");
+        GroupHistory parsed = GroupHistory.parse(history.toString());
+        Assert.assertEquals(GroupHistory.PAGE_SIZE + 1, parsed.getCount());
+        Assert.assertEquals("next", parsed.getOpenPage().get(0));
+    }
+
+    @Test
+    public void testExpiringEntries() {
+        String entry = GroupHistory.entry("addr", 1000L);
+        Assert.assertEquals("addr", GroupHistory.addressOf(entry));
+        Assert.assertFalse(GroupHistory.isExpired(entry, 999));
+        Assert.assertTrue(GroupHistory.isExpired(entry, 1000));
+        Assert.assertFalse(GroupHistory.isExpired(GroupHistory.entry("addr", null), Long.MAX_VALUE - 1));
+
+        GroupHistory history = GroupHistory.parse("1," + GroupHistory.COMPACTED + ",2");
+        Assert.assertTrue(GroupHistory.isCompacted(history.getOpenPage().get(0)));
+        Assert.assertEquals(2, history.getCompactedPages());
+        Assert.assertEquals(history.toString(), GroupHistory.parse(history.toString()).toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInconsistentHead() {
+        GroupHistory.parse("3,a|b");
+    }
+}
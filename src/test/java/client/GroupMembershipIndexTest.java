@@ -0,0 +1,99 @@
+package client;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+import sawtooth.sdk.protobuf.StateChange;
+import sawtooth.sdk.protobuf.StateChangeList;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class GroupMembershipIndexTest {
+
+    private static CompletableFuture<ByteString> entry(String members) {
+        return CompletableFuture.completedFuture(ByteString.copyFrom(members, UTF_8));
+    }
+
+    @Test
+    public void testFailedReadIsNotIndexed() {
+        AtomicInteger reads = new AtomicInteger();
+        GroupMembershipIndex index = new GroupMembershipIndex(g -> "addr-" + g, address -> {
+            if (reads.incrementAndGet() == 1) {
+                CompletableFuture<ByteString> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IOException("connection lost"));
+                return failed;
+            }
+            return entry("k1,k2");
+        });
+
+        try {
+            index.getMembers("g");
+            fail("Failed read was not reported");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(Arrays.asList("k1", "k2"), index.getMembers("g").asList());
+        assertTrue(index.isMember("g", "k2"));
+        assertEquals(2, reads.get());
+    }
+
+    @Test
+    public void testApplyUpdatesIndexedGroups() {
+        AtomicInteger reads = new AtomicInteger();
+        GroupMembershipIndex index = new GroupMembershipIndex(g -> "addr-" + g, address -> {
+            reads.incrementAndGet();
+            return entry("k1");
+        });
+        assertEquals(Collections.singletonList("k1"), index.getMembers("g").asList());
+
+        index.apply(StateChangeList.newBuilder()
+                .addStateChanges(StateChange.newBuilder().setAddress("addr-g")
+                        .setValue(ByteString.copyFrom("k1,k2", UTF_8)).setType(StateChange.Type.SET))
+                .build());
+        assertEquals(Arrays.asList("k1", "k2"), index.getMembers("g").asList());
+
+        index.apply(StateChangeList.newBuilder()
+                .addStateChanges(StateChange.newBuilder().setAddress("addr-g").setType(StateChange.Type.DELETE))
+                .build());
+        assertTrue(index.getMembers("g").isEmpty());
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void testClearReadsGroupsAgain() {
+        AtomicInteger reads = new AtomicInteger();
+        GroupMembershipIndex index = new GroupMembershipIndex(g -> "addr-" + g, address -> {
+            reads.incrementAndGet();
+            return entry("k1");
+        });
+        index.getMembers("g");
+        index.getMembers("g");
+        assertEquals(1, reads.get());
+
+        index.clear();
+        index.getMembers("g");
+        assertEquals(2, reads.get());
+    }
+
+    @Test
+    public void testReadOverlappingClearIsNotIndexed() {
+        AtomicInteger reads = new AtomicInteger();
+        GroupMembershipIndex[] index = new GroupMembershipIndex[1];
+        index[0] = new GroupMembershipIndex(g -> "addr-" + g, address -> {
+            if (reads.incrementAndGet() == 1) {
+                // The subscription changes while the entry is read
+                index[0].clear();
+            }
+            return entry("k1");
+        });
+
+        assertEquals(Collections.singletonList("k1"), index[0].getMembers("g").asList());
+        index[0].getMembers("g");
+        assertEquals(2, reads.get());
+    }
+}
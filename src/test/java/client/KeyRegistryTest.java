@@ -0,0 +1,38 @@
+package client;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class KeyRegistryTest {
+
+    @Test
+    public void testFailedUnwrapKeepsGroup() {
+        SecretKey key = Crypto.generateSecretKey();
+        AtomicInteger attempts = new AtomicInteger();
+        // The first unwrap fails like an UnrecoverableEntryException in Storage.loadKey
+        KeyRegistry registry = new KeyRegistry(g -> attempts.incrementAndGet() == 1 ? null : key);
+        registry.addUnloadedGroup("g");
+
+        Assert.assertNull(registry.getGroupKey("g"));
+        Assert.assertTrue(registry.hasGroup("g"));
+        Assert.assertEquals(Collections.singletonList("g"), registry.getUnloadedGroupNames());
+
+        Assert.assertEquals(key, registry.getGroupKey("g"));
+        Assert.assertTrue(registry.getUnloadedGroupNames().isEmpty());
+        Assert.assertEquals(Collections.singletonList("g"), registry.getGroupNames());
+        Assert.assertEquals(key, registry.copyGroupKeys().get("g"));
+    }
+
+    @Test
+    public void testPutIfAbsentRespectsUnloadedGroups() {
+        KeyRegistry registry = new KeyRegistry(g -> Crypto.generateSecretKey());
+        registry.addUnloadedGroup("g");
+        Assert.assertFalse(registry.putGroupKeyIfAbsent("g", Crypto.generateSecretKey()));
+        Assert.assertTrue(registry.putGroupKeyIfAbsent("h", Crypto.generateSecretKey()));
+        Assert.assertEquals(2, registry.getGroupNames().size());
+    }
+}
@@ -0,0 +1,121 @@
+package client;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+import sawtooth.sdk.protobuf.ClientBatchStatus;
+import sawtooth.sdk.protobuf.ClientBatchStatusResponse;
+import sawtooth.sdk.protobuf.StateChange;
+import sawtooth.sdk.protobuf.StateChangeList;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class PendingWritesTest {
+
+    private static final long STATUS_INTERVAL_MS = 10;
+
+    // Status the fake validator reports per batch ID, PENDING if not set
+    private final Map<String, ClientBatchStatus.Status> statuses = new ConcurrentHashMap<>();
+
+    private PendingWrites newPendingWrites(long unknownGraceMS) {
+        return new PendingWrites(batchIds -> {
+            ClientBatchStatusResponse.Builder response = ClientBatchStatusResponse.newBuilder()
+                    .setStatus(ClientBatchStatusResponse.Status.OK);
+            for (String batchId : batchIds) {
+                response.addBatchStatuses(ClientBatchStatus.newBuilder()
+                        .setBatchId(batchId)
+                        .setStatus(statuses.getOrDefault(batchId, ClientBatchStatus.Status.PENDING)));
+            }
+            return CompletableFuture.completedFuture(response.build());
+        }, STATUS_INTERVAL_MS, unknownGraceMS);
+    }
+
+    private static ByteString value(String s) {
+        return ByteString.copyFrom(s, UTF_8);
+    }
+
+    private static void waitUntilDropped(PendingWrites pending, String address) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (pending.get(address) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(STATUS_INTERVAL_MS);
+        }
+    }
+
+    @Test
+    public void testCommitRemovesWrites() {
+        try (PendingWrites pending = newPendingWrites(PendingWrites.DEFAULT_UNKNOWN_GRACE_MS)) {
+            Map<String, ByteString> writes = new HashMap<>();
+            writes.put("a1", value("v1"));
+            writes.put("a2", value("v2"));
+            pending.add("b1", writes);
+            assertEquals(value("v1"), pending.get("a1"));
+            assertEquals(2, pending.size());
+
+            pending.apply(StateChangeList.newBuilder()
+                    .addStateChanges(StateChange.newBuilder().setAddress("a1").setValue(value("v1"))
+                            .setType(StateChange.Type.SET))
+                    .build());
+            assertNull(pending.get("a1"));
+            assertEquals(value("v2"), pending.get("a2"));
+            assertEquals(1, pending.size());
+        }
+    }
+
+    @Test
+    public void testLaterBatchKeepsAddress() {
+        try (PendingWrites pending = newPendingWrites(PendingWrites.DEFAULT_UNKNOWN_GRACE_MS)) {
+            pending.add("b1", Collections.singletonMap("a1", value("v1")));
+            pending.add("b2", Collections.singletonMap("a1", value("v2")));
+            // The submission of the first batch failed
+            pending.remove("b1");
+            assertEquals(value("v2"), pending.get("a1"));
+        }
+    }
+
+    @Test
+    public void testInvalidBatchIsDropped() throws InterruptedException {
+        try (PendingWrites pending = newPendingWrites(PendingWrites.DEFAULT_UNKNOWN_GRACE_MS)) {
+            statuses.put("b1", ClientBatchStatus.Status.INVALID);
+            pending.add("b1", Collections.singletonMap("a1", value("v1")));
+            pending.add("b2", Collections.singletonMap("a2", value("v2")));
+
+            waitUntilDropped(pending, "a1");
+            assertNull(pending.get("a1"));
+            assertEquals(value("v2"), pending.get("a2"));
+        }
+    }
+
+    @Test
+    public void testUnknownBatchIsDroppedAfterGracePeriod() throws InterruptedException {
+        try (PendingWrites pending = newPendingWrites(50)) {
+            statuses.put("b1", ClientBatchStatus.Status.UNKNOWN);
+            pending.add("b1", Collections.singletonMap("a1", value("v1")));
+
+            // The validator does not know a batch whose submission is still in progress
+            Thread.sleep(20 * STATUS_INTERVAL_MS);
+            assertEquals(value("v1"), pending.get("a1"));
+
+            pending.submitted("b1");
+            waitUntilDropped(pending, "a1");
+            assertNull(pending.get("a1"));
+        }
+    }
+
+    @Test
+    public void testUnknownBatchIsKeptDuringGracePeriod() throws InterruptedException {
+        try (PendingWrites pending = newPendingWrites(PendingWrites.DEFAULT_UNKNOWN_GRACE_MS)) {
+            statuses.put("b1", ClientBatchStatus.Status.UNKNOWN);
+            pending.add("b1", Collections.singletonMap("a1", value("v1")));
+            pending.submitted("b1");
+
+            Thread.sleep(20 * STATUS_INTERVAL_MS);
+            assertEquals(value("v1"), pending.get("a1"));
+        }
+    }
+}
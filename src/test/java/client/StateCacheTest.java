@@ -0,0 +1,93 @@
+package client;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+import sawtooth.sdk.protobuf.StateChange;
+import sawtooth.sdk.protobuf.StateChangeList;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class StateCacheTest {
+
+    // Address of 2 chars, value of 10 bytes and 64 bytes overhead per entry
+    private static final long ENTRY_BYTES = 2 + 10 + 64;
+
+    private static ByteString value(String s) {
+        return ByteString.copyFrom(String.format("%-10s", s), UTF_8);
+    }
+
+    private static StateChange set(String address, ByteString value) {
+        return StateChange.newBuilder().setAddress(address).setValue(value).setType(StateChange.Type.SET).build();
+    }
+
+    private static StateChange delete(String address) {
+        return StateChange.newBuilder().setAddress(address).setType(StateChange.Type.DELETE).build();
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedByBytes() {
+        StateCache cache = new StateCache(3 * ENTRY_BYTES);
+        cache.put("a1", value("v1"), cache.getVersion());
+        cache.put("a2", value("v2"), cache.getVersion());
+        cache.put("a3", value("v3"), cache.getVersion());
+        // a2 is now the least recently used entry
+        assertEquals(value("v1"), cache.get("a1"));
+
+        cache.put("a4", value("v4"), cache.getVersion());
+        assertNull(cache.get("a2"));
+        assertEquals(value("v1"), cache.get("a1"));
+        assertEquals(value("v3"), cache.get("a3"));
+        assertEquals(value("v4"), cache.get("a4"));
+
+        // A value larger than the whole cache is not cached and evicts nothing
+        cache.put("a5", ByteString.copyFrom(new byte[(int) (3 * ENTRY_BYTES)]), cache.getVersion());
+        assertNull(cache.get("a5"));
+        assertEquals(value("v4"), cache.get("a4"));
+    }
+
+    @Test
+    public void testStalePutIsIgnored() {
+        StateCache cache = new StateCache(1024);
+        long versionBeforeRead = cache.getVersion();
+        // A block is committed while the value is read
+        cache.apply(StateChangeList.newBuilder().addStateChanges(set("b1", value("new"))).build());
+
+        cache.put("a1", value("old"), versionBeforeRead);
+        assertNull(cache.get("a1"));
+
+        cache.put("a1", value("current"), cache.getVersion());
+        assertEquals(value("current"), cache.get("a1"));
+    }
+
+    @Test
+    public void testApplyUpdatesCachedEntries() {
+        StateCache cache = new StateCache(1024);
+        cache.put("a1", value("v1"), cache.getVersion());
+        cache.put("a2", value("v2"), cache.getVersion());
+
+        cache.apply(StateChangeList.newBuilder()
+                .addStateChanges(set("a1", value("v1-new")))
+                .addStateChanges(delete("a2"))
+                .addStateChanges(set("a3", value("v3")))
+                .build());
+
+        assertEquals(value("v1-new"), cache.get("a1"));
+        assertNull(cache.get("a2"));
+        // Addresses that were not cached are not added
+        assertNull(cache.get("a3"));
+    }
+
+    @Test
+    public void testClear() {
+        StateCache cache = new StateCache(1024);
+        cache.put("a1", value("v1"), cache.getVersion());
+        long versionBeforeRead = cache.getVersion();
+
+        // Called when the event subscription changed and state changes could have been missed
+        cache.clear();
+        assertNull(cache.get("a1"));
+        cache.put("a2", value("v2"), versionBeforeRead);
+        assertNull(cache.get("a2"));
+    }
+}
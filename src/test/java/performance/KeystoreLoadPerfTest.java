@@ -0,0 +1,40 @@
+package performance;
+
+import client.HyperZMQ;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares opening a keystore with many groups eagerly and lazily
+ */
+public class KeystoreLoadPerfTest {
+    // ----------------------- CONFIGURATION -----------------------
+    private static final int GROUP_COUNT = 1000;
+    private static final String KEYSTORE_PATH = "perfstore.jks";
+    private static final String PASSWORD = "password";
+    // -------------------------------------------------------------
+
+    @Test
+    public void test() throws Exception {
+        HyperZMQ creator = new HyperZMQ("creator", KEYSTORE_PATH, PASSWORD, null, true);
+        for (int i = 0; i < GROUP_COUNT; i++) {
+            creator.createGroup("group" + i);
+        }
+        creator.flushKeyStore();
+        creator.close();
+
+        long start = System.nanoTime();
+        HyperZMQ eager = new HyperZMQ("eager", KEYSTORE_PATH, PASSWORD, null, false, false);
+        long eagerMS = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        HyperZMQ lazy = new HyperZMQ("lazy", KEYSTORE_PATH, PASSWORD, null, false, true);
+        long lazyMS = (System.nanoTime() - start) / 1000000;
+        System.out.println("Loading " + GROUP_COUNT + " groups: eager=" + eagerMS + "ms lazy=" + lazyMS + "ms");
+
+        assertEquals(eager.getKeyForGroup("group500"), lazy.getKeyForGroup("group500"));
+        eager.close();
+        lazy.close();
+    }
+}